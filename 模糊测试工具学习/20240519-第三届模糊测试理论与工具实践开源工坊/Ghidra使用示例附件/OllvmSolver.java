@@ -3,8 +3,8 @@
 // Usage:
 // ADD /src into Ghidra scripts directory list and refreshes it.
 //
-// Before deobfuscation process, you need to create a JSON file including necessary information. In the future, json
-// files may be generated automatically and user just need to check it.
+// Before deobfuscation process, you need to create a JSON file including necessary information. It can be generated
+// by running this plugin with discover=<path of json file> (see below), and user just need to check it.
 //
 // This plugin now support several kinds of deobfuscation:
 // - Control Flow Flattening with local variables
@@ -22,7 +22,23 @@
 //      "var_size": 8,
 //      "var_init_address": 4196768
 //    }
-//  ]
+//  ],
+//  "decompiler_threads": 8,
+//  "decompile_timeout_secs": 30,
+//  "decompile_payload_mb": 50,
+//  "decompile_cache_mb": 512,
+//  "dft_max_nodes": 1048576,
+//  "dft_max_depth": 65536,
+//  "deflat_mode": "raw_pcode",
+//  "fixed_point_rounds": 4,
+//  "patch_journal": "/path/to/hardCpp.ollvmj",
+//  "journal_mode": "record",
+//  "result_store": "/path/to/store",
+//  "pcode_snapshots": "/path/to/snapshots",
+//  "metrics_report": "/path/to/metrics.json",
+//  "log_level": "info",
+//  "log_file": "/path/to/ollvm.log",
+//  "log_file_mb": 64
 //}
 //```
 //
@@ -30,63 +46,427 @@
 //   - var_size: variable size, only can be 4 or 8.
 //   - var_init_address: memory address containing the instruction that initializes the state variable. It can be a hex
 //     string (no "0x") or an integer.
+//   Entries in the same function, like nested flattening, are deflatted from one decompilation and patched together.
+// - decompiler_threads: (optional) number of decompilers working at the same time, defaults to the number of cores. In
+//   corpus mode the cores are shared by the programs open at the same time, each gets cores / parallel_programs.
+// - decompile_timeout_secs, decompile_payload_mb: (optional) time and memory limit of decompiling a function of 4 KB
+//   or less, defaults to 30 seconds and 50 MB. Larger functions get one more share every 4 KB, up to 8 shares. Only
+//   p-code is decompiled, without C code, and a function timed out is retried once with "normalize" simplification.
+// - decompile_cache_mb: (optional) memory budget of decompiled functions kept for reuse, defaults to 512.
+// - dft_max_nodes, dft_max_depth: (optional) budget of the data flow tree built for a state variable, a function going
+//   beyond it is given up.
+// - deflat_mode: (optional) "decompiler" (default) deflats the decompiled function. "raw_pcode" first tries the p-code
+//   of instructions with a light SSA of registers and stack slots (RawPcodeSSA), and only decompiles a function when
+//   that cannot resolve every state.
+// - fixed_point_rounds: (optional) removing a dispatcher may expose another one, like an inner flattened region. After
+//   target_local_vars are patched, state variables are discovered again in the patched functions only, and the new
+//   ones are deflatted, for at most this many rounds or until no function is patched. Defaults to 0, no more rounds.
+// - patch_journal: (optional) binary file recording every patch applied, with the original bytes.
+// - journal_mode: (optional) "record" (default) runs deobfuscation and writes the journal. "replay" applies the journal
+//   to the program instead and "revert" undoes it, both check the bytes first and skip all analysis.
+// - result_store: (optional) directory keeping analysis results of each function. A function whose bytes and config
+//   entry are unchanged since last run is patched with the stored result without being decompiled.
+// - pcode_snapshots: (optional) directory to write a binary p-code snapshot of every function deflatted, named
+//   <function>_<entry>.olp (.raw.olp for raw p-code), which PcodeSnapshot.load reads without Ghidra.
+// - metrics_report: (optional) json file to write time and counters of every phase (decompiling, deflatting, global
+//   var deobfuscation and patching), for each function and in total. The phases are also JFR events of category
+//   OllvmSolver, which can be recorded by starting Ghidra with -XX:StartFlightRecording.
+// - log_level: (optional) one of "error", "warn", "info" (default), "debug" and "trace". Messages below it are
+//   dropped without being formatted.
+// - log_file, log_file_mb: (optional) file to write the log into, defaults to OllvmSolver.log besides the Ghidra
+//   project. It's rotated after log_file_mb (default 64) MB, keeping 3 old ones as <log_file>.1 to .3. The log is
+//   written by a background thread, the script console only shows where it is.
 //
 // After creating your json file, you can run this plugin in Ghidra GUI and choose your json file. Then just wait the
 // miracle take place.
 //
+// It can also run headless, with options given as script arguments in form of key=value:
+//
+//   analyzeHeadless <project dir> <project> -process hardCpp -postScript OllvmSolver.java config=/path/to/config.json
+//
+// or deobfuscate every program in a project folder, several of them at the same time:
+//
+//   analyzeHeadless <project dir> <project> -postScript OllvmSolver.java config=/path/to/configs corpus=/samples
+//       parallel_programs=4 summary=/path/to/summary.json
+//
+// - config: path of the json file above. In corpus mode, a directory with one <program name>.json for each program.
+// - corpus: (optional) project folder to process (recursively) instead of current program. Programs are saved after
+//   deobfuscation. Addresses in a config only mean something in its own program, so a program without a json file in
+//   config directory is skipped and reported in summary. patch_journal and metrics_report in config, if any, get the
+//   program name appended in this mode.
+// - parallel_programs: (optional) number of programs open and processed at the same time, defaults to 2.
+// - summary: (optional) json file to write time, functions handled and patches applied of each program.
+// - discover: (optional) instead of deobfuscating, find state variables of current program and write a config ready to
+//   run into this path. Entries of target_local_vars are ranked by "confidence", the fraction of constants stored into
+//   the variable that its dispatcher really compares with, and entries below 0.5 are left out.
+// - import_pcode: (optional) instead of deobfuscating, convert a text dump of p-code like hardcpp_pcodeopasts_main.txt
+//   into a p-code snapshot, written to the path given by snapshot.
+// - log_level, log_file, log_file_mb: (optional) the same as in config, script arguments win over config. In corpus
+//   mode all programs share one log, configured only by script arguments, and log_* keys of their configs are ignored.
+//
+// Deflatting itself (DeflatCore) only sees a FlowGraph and needs nothing from Ghidra. Once this file is compiled with
+// the jars of Ghidra, it can be benchmarked on generated flattened functions of 100 to 100k states without them:
+//
+//   java -cp <classes of this file> 'OllvmSolver$CoreBenchmark' [states...]
+//
+// which prints throughput and bytes allocated of relation finding, DFT construction and exec flow recovery.
+//
 //@author Hornos - Hornos3.github.com, hornos@hust.edu.cn
 //@category Binary
 
 import com.google.gson.*;
 import docking.options.OptionsService;
+import ghidra.app.cmd.disassemble.DisassembleCommand;
 import ghidra.app.decompiler.DecompInterface;
 import ghidra.app.decompiler.DecompileOptions;
 import ghidra.app.decompiler.DecompileResults;
 import ghidra.app.plugin.assembler.Assembler;
 import ghidra.app.plugin.assembler.Assemblers;
 import ghidra.app.script.GhidraScript;
+import ghidra.app.script.GhidraState;
+import ghidra.framework.model.DomainFile;
+import ghidra.framework.model.DomainFolder;
+import ghidra.framework.model.ProjectLocator;
 import ghidra.framework.options.ToolOptions;
 import ghidra.framework.plugintool.PluginTool;
 import ghidra.program.model.address.Address;
+import ghidra.program.model.address.AddressRange;
+import ghidra.program.model.address.AddressSet;
+import ghidra.program.model.address.AddressSetView;
+import ghidra.program.model.address.AddressSpace;
+import ghidra.program.model.lang.CompilerSpec;
+import ghidra.program.model.lang.PrototypeModel;
+import ghidra.program.model.lang.Register;
 import ghidra.program.model.listing.*;
 import ghidra.program.model.mem.Memory;
+import ghidra.program.model.mem.MemoryAccessException;
+import ghidra.program.model.mem.MemoryBlock;
 import ghidra.program.model.pcode.*;
 import ghidra.program.model.listing.Instruction;
-import ghidra.program.model.listing.InstructionIterator;
 import ghidra.program.model.listing.Listing;
 import ghidra.program.model.listing.Program;
 import ghidra.program.model.pcode.PcodeBlockBasic;
 import ghidra.program.model.symbol.*;
 
-import java.io.FileReader;
+import java.io.*;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 import javax.swing.*;
 import javax.swing.filechooser.FileFilter;
-import java.io.File;
 
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 ////////////////////////////////////////////////////// OllvmSolver /////////////////////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
 public class OllvmSolver extends GhidraScript {
-    public static final boolean DEBUG = true;
+    // decompiled functions shared by all analysis phases, null if caching is not used
+    private HighFunctionCache decompileCache;
+    // forms of branches encoded by BranchEncoderX86 that are checked against the assembler, and the ones that differ
+    private final Set<String> verifiedBranchForms = ConcurrentHashMap.newKeySet();
+    private final Set<String> mismatchedBranchForms = ConcurrentHashMap.newKeySet();
+    // every patch applied is recorded here, null if not recording
+    private PatchJournal patchJournal;
+    // analysis results of former runs, null if not used
+    private ResultStore resultStore;
+    // read-only global vars used by GlobalVarHandler, updated by PatchPlan, null if not used
+    private ReadOnlyGlobalIndex globalIndex;
+    // a function gets one more share of decompile limits every DECOMPILE_SCALE_BYTES, up to DECOMPILE_MAX_SCALE
+    public static final long DECOMPILE_SCALE_BYTES = 4096;
+    public static final long DECOMPILE_MAX_SCALE = 8;
+
+    // the log belongs to the script running a corpus, log_* of config are ignored
+    private boolean sharedLog = false;
+    // decompilers of a program whose config doesn't give decompiler_threads, less than the cores in corpus mode
+    private int defaultDecompilers = Runtime.getRuntime().availableProcessors();
+    // decompile limits of a small function, from config
+    private int decompileTimeout = 30;
+    private int decompilePayload = 50;
+    // log of this run, shared by the solvers of all programs in corpus mode
+    private SolverLog log;
+    // time and counters of each phase of current program
+    private SolverMetrics metrics = new SolverMetrics(null);
+    // counters of current program, for ProgramSummary
+    private int functionsHandled;
+    private int patchesApplied;
 
     @Override
     protected void run() throws Exception {
-        JFrame frame = new JFrame();
-        JFileChooser chooser = getjFileChooser();
+        Map<String, String> args = parseScriptArgs();
+        this.log = new SolverLog(args, this.defaultLogFile());
+        println(String.format("OllvmSolver log is written into %s", this.log.getFile()));
+        try {
+            this.run(args);
+        } finally {
+            this.log.close();
+        }
+    }
+
+    private void run(Map<String, String> args) throws Exception {
+        if (args.containsKey("corpus")) {
+            this.runCorpus(args);
+            return;
+        }
+        if (args.containsKey("discover")) {
+            this.discoverStateVars(args.get("discover"));
+            return;
+        }
+        if (args.containsKey("import_pcode")) {
+            if (!args.containsKey("snapshot"))
+                throw new Exception("Missing script argument snapshot=<path of p-code snapshot>");
+            File dump = new File(args.get("import_pcode"));
+            PcodeSnapshot snapshot = PcodeSnapshot.importText(dump, dump.getName());
+            snapshot.write(new File(args.get("snapshot")));
+            println(snapshot.toString());
+            return;
+        }
+
+        String config_path = args.get("config");
+        if (config_path == null) {
+            if (isRunningHeadless())
+                throw new Exception("Missing script argument config=<path of json file>");
+            JFrame frame = new JFrame();
+            JFileChooser chooser = getjFileChooser();
+
+            int flag = chooser.showOpenDialog(frame);
+
+            // choose a json file
+            if(flag != JFileChooser.APPROVE_OPTION)
+                return;
+            config_path = chooser.getSelectedFile().getPath();
+        }
+        println(this.solveProgram(config_path, "").toString());
+    }
+
+    // OllvmSolver.log besides the project file, or in the temporary directory if no project is open
+    private File defaultLogFile() {
+        ProjectLocator locator = state.getProject() == null ? null : state.getProject().getProjectLocator();
+        String dir = locator == null ? System.getProperty("java.io.tmpdir") : locator.getLocation();
+        return new File(dir, "OllvmSolver.log");
+    }
+
+    // script arguments in form of key=value
+    private Map<String, String> parseScriptArgs() throws Exception {
+        Map<String, String> ret = new HashMap<>();
+        for (String arg: getScriptArgs()) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0)
+                throw new Exception(String.format("Invalid script argument \"%s\", key=value expected", arg));
+            ret.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        return ret;
+    }
+
+    // Deobfuscate every program in a project folder. Each program is handled by its own OllvmSolver instance, which
+    // keeps all the states of that program, and at most `parallel_programs` of them are open at the same time.
+    private void runCorpus(Map<String, String> args) throws Exception {
+        String config_path = args.get("config");
+        if (config_path == null)
+            throw new Exception("Missing script argument config=<directory of json files>");
+        File config_dir = new File(config_path);
+        if (!config_dir.isDirectory())
+            throw new Exception(String.format("%s is not a directory, corpus mode needs a json file for each " +
+                    "program in it", config_path));
+        DomainFolder folder = state.getProject().getProjectData().getFolder(args.get("corpus"));
+        if (folder == null)
+            throw new Exception(String.format("No project folder %s found", args.get("corpus")));
+        int parallel = Integer.parseInt(args.getOrDefault("parallel_programs", "2"));
+        if (parallel < 1)
+            throw new Exception("parallel_programs must be a positive number");
+
+        Vector<DomainFile> files = new Vector<>();
+        ArrayDeque<DomainFolder> folders = new ArrayDeque<>();
+        folders.push(folder);
+        while (!folders.isEmpty()) {
+            DomainFolder f = folders.pop();
+            for (DomainFile file: f.getFiles())
+                if (Program.class.isAssignableFrom(file.getDomainObjectClass()))
+                    files.add(file);
+            for (DomainFolder sub: f.getFolders())
+                folders.push(sub);
+        }
+        this.log.info("Deobfuscating %d programs in %s, %d at a time", files.size(), folder.getPathname(), parallel);
+
+        // every open program has its own decompilers, they share the cores
+        int decompilers = Math.max(1, Runtime.getRuntime().availableProcessors() / parallel);
+        ExecutorService programs = Executors.newFixedThreadPool(parallel);
+        Vector<Future<ProgramSummary>> futures = new Vector<>();
+        try {
+            for (DomainFile file: files)
+                futures.add(programs.submit(() -> this.solveDomainFile(file, config_dir, decompilers)));
+            JsonArray summaries = new JsonArray();
+            for (Future<ProgramSummary> future: futures) {
+                ProgramSummary summary = future.get();
+                println(summary.toString());
+                summaries.add(summary.toJson());
+            }
+            if (args.containsKey("summary")) {
+                try (Writer out = new FileWriter(args.get("summary"))) {
+                    new GsonBuilder().setPrettyPrinting().create().toJson(summaries, out);
+                }
+            }
+        } finally {
+            programs.shutdownNow();
+        }
+    }
+
+    // Deobfuscate `file` with <its name>.json in `config_dir`, a program without one is skipped without being opened.
+    // `decompilers` is its share of the cores, used unless its config gives decompiler_threads.
+    private ProgramSummary solveDomainFile(DomainFile file, File config_dir, int decompilers) {
+        long start = System.currentTimeMillis();
+        File config = new File(config_dir, file.getName() + ".json");
+        if (!config.isFile()) {
+            this.log.warn("No config %s for %s, skipped", config, file.getPathname());
+            return ProgramSummary.skipped(file.getPathname(), String.format("no config %s", config));
+        }
+        Program program = null;
+        try {
+            program = (Program) file.getDomainObject(this, true, false, monitor);
+            OllvmSolver solver = new OllvmSolver();
+            solver.log = this.log;
+            solver.sharedLog = true;
+            solver.defaultDecompilers = decompilers;
+            solver.set(new GhidraState(state.getTool(), state.getProject(), program, null, null, null),
+                    monitor, writer);
+            int transaction = program.startTransaction("OllvmSolver");
+            boolean success = false;
+            ProgramSummary ret;
+            try {
+                ret = solver.solveProgram(config.getPath(), "." + file.getName());
+                success = true;
+            } finally {
+                program.endTransaction(transaction, success);
+            }
+            program.save("Deobfuscated by OllvmSolver", monitor);
+            return ret;
+        } catch (Exception e) {
+            return new ProgramSummary(file.getPathname(), System.currentTimeMillis() - start, 0, 0,
+                    e.toString());
+        } finally {
+            if (program != null)
+                program.release(this);
+        }
+    }
+
+    // Find state variables of current program and write a config ready to run into `output_path`.
+    private void discoverStateVars(String output_path) throws Exception {
+        SolverConfig config = new SolverConfig();
+        config.global_var_deobfuscation_mode = "disabled";
+        this.decompileTimeout = config.decompile_timeout_secs;
+        this.decompilePayload = config.decompile_payload_mb;
+        DecompilerPool pool = new DecompilerPool(currentProgram, config.decompiler_threads > 0 ?
+                config.decompiler_threads : this.defaultDecompilers);
+        this.decompileCache = new HighFunctionCache(currentProgram, config.decompile_cache_mb << 20);
+        try {
+            StateVarDiscovery discovery = new StateVarDiscovery(this, currentProgram, config);
+            discovery.writeConfig(discovery.discover(pool), new File(output_path));
+        } finally {
+            pool.dispose();
+            this.decompileCache = null;
+        }
+    }
+
+    // Deobfuscate current program with config in `config_path`. `journal_suffix` is appended to patch_journal path.
+    ProgramSummary solveProgram(String config_path, String journal_suffix) throws Exception {
+        long start = System.currentTimeMillis();
+        this.functionsHandled = 0;
+        this.patchesApplied = 0;
+        this.metrics = new SolverMetrics(currentProgram.getName());
+
+        // read all content from json file and deserialize it into SolverConfig
+        SolverConfig config = new SolverConfig(config_path);
+        // a log shared by several programs is only configured by script arguments
+        if (!this.sharedLog) {
+            this.log.configure(config.log_level, config.log_file, config.log_file_mb);
+            if (config.log_file != null)
+                println(String.format("OllvmSolver log is written into %s", this.log.getFile()));
+        }
+        // apply or undo patches recorded before, no analysis needed
+        if (!config.journal_mode.equals("record")) {
+            new PatchJournal(new File(config.patch_journal + journal_suffix)).replay(currentProgram,
+                    config.journal_mode.equals("revert"));
+            return new ProgramSummary(currentProgram.getName(), System.currentTimeMillis() - start, 0,
+                    this.patchesApplied, null);
+        }
+        if (config.patch_journal != null)
+            this.patchJournal = new PatchJournal(new File(config.patch_journal + journal_suffix));
+        if (config.result_store != null)
+            this.resultStore = new ResultStore(currentProgram, new File(config.result_store));
+        // build decompilers for our scripts to get decompiled p-code, which is independent to assembly addresses
+        this.decompileTimeout = config.decompile_timeout_secs;
+        this.decompilePayload = config.decompile_payload_mb;
+        DecompilerPool pool = new DecompilerPool(currentProgram, config.decompiler_threads > 0 ?
+                config.decompiler_threads : this.defaultDecompilers);
+        this.decompileCache = new HighFunctionCache(currentProgram, config.decompile_cache_mb << 20);
+        // main process for deobfuscation
+        try {
+            config.solve(this, currentProgram, pool);
+        } finally {
+            pool.dispose();
+            this.log.info("%s", this.decompileCache);
+            this.decompileCache = null;
+            if (this.patchJournal != null) {
+                this.patchJournal.close();
+                this.log.info("%d patches recorded in %s%s", this.patchJournal.size(), config.patch_journal,
+                        journal_suffix);
+                this.patchJournal = null;
+            }
+            if (this.resultStore != null) {
+                this.log.info("%s", this.resultStore);
+                this.resultStore = null;
+            }
+            this.log.info("%s", this.metrics);
+            if (config.metrics_report != null)
+                this.metrics.write(new File(config.metrics_report + journal_suffix));
+        }
+        return new ProgramSummary(currentProgram.getName(), System.currentTimeMillis() - start,
+                this.functionsHandled, this.patchesApplied, null);
+    }
+
+    // time, functions handled and patches applied of a program
+    record ProgramSummary(String program, long millis, int functions, int patches, String error) {
+        // a program left untouched, `reason` is kept as error with "skipped: " before it
+        static ProgramSummary skipped(String program, String reason) {
+            return new ProgramSummary(program, 0, 0, 0, "skipped: " + reason);
+        }
 
-        int flag = chooser.showOpenDialog(frame);
+        public boolean isSkipped() {
+            return this.error != null && this.error.startsWith("skipped: ");
+        }
+
+        public JsonObject toJson() {
+            JsonObject ret = new JsonObject();
+            ret.addProperty("program", this.program);
+            ret.addProperty("millis", this.millis);
+            ret.addProperty("functions", this.functions);
+            ret.addProperty("patches", this.patches);
+            if (this.error != null)
+                ret.addProperty("error", this.error);
+            return ret;
+        }
 
-        // choose a json file
-        if(flag == JFileChooser.APPROVE_OPTION) {
-            // read all content from json file and deserialize it into SolverConfig
-            SolverConfig config = new SolverConfig(chooser.getSelectedFile().getPath());
-            // build decompiler for our scripts to get decompiled p-code, which is independent to assembly addresses
-            DecompInterface decompiler = buildDecompiler(currentProgram);
-            // main process for deobfuscation
-            config.solve(this, currentProgram, decompiler);
+        @Override
+        public String toString() {
+            if (this.isSkipped())
+                return String.format("%s: %s", this.program, this.error);
+            if (this.error != null)
+                return String.format("%s: failed after %d ms, %s", this.program, this.millis, this.error);
+            return String.format("%s: %d functions, %d patches in %d ms", this.program, this.functions,
+                    this.patches, this.millis);
         }
     }
 
@@ -119,9 +499,13 @@ public class OllvmSolver extends GhidraScript {
                 options.grabFromToolAndProgram(null, opt, program);
             }
         }
+        options.setMaxPayloadMBytes(this.decompilePayload);
         decompInterface.setOptions(options);
-        decompInterface.toggleCCode(true);
+        // only the p-code syntax tree is analysed, C code and prototype measures are never used
+        decompInterface.toggleCCode(false);
         decompInterface.toggleSyntaxTree(true);
+        decompInterface.toggleParamMeasures(false);
+        decompInterface.toggleJumpLoads(false);
         decompInterface.setSimplificationStyle("decompile");
         if (!decompInterface.openProgram(currentProgram)) {
             throw new Exception(String.format("ERROR: Failed to open current program.\nError message: %s",
@@ -130,22 +514,741 @@ public class OllvmSolver extends GhidraScript {
         return decompInterface;
     }
 
+    // number of addresses in function body, used to estimate how much work a function is
+    public static long functionSize(Function func) {
+        return func == null ? 0 : func.getBody().getNumAddresses();
+    }
+
     public HighFunction decompileFunction(DecompInterface decompiler, Function func) throws Exception {
-        HighFunction hFunction;
+        if (this.decompileCache != null)
+            return this.decompileCache.get(decompiler, func);
+        return this.decompileFunctionUncached(decompiler, func);
+    }
+
+    // Tell the cache that `addr` is going to be rewritten, call it before the program is modified.
+    public void invalidateDecompiled(Address addr) {
+        if (this.decompileCache != null)
+            this.decompileCache.invalidate(addr);
+    }
+
+    HighFunction decompileFunctionUncached(DecompInterface decompiler, Function func) throws Exception {
+        HighFunction hFunction = null;
+        DecompileEvent event = new DecompileEvent();
+        event.start(func);
+        long scale = Math.min(DECOMPILE_MAX_SCALE, 1 + functionSize(func) / DECOMPILE_SCALE_BYTES);
+        event.timeout_secs = (int) (this.decompileTimeout * scale);
+        event.payload_mb = (int) (this.decompilePayload * scale);
 
         try {
-            DecompileResults dRes = decompiler.decompileFunction(func,
-                    decompiler.getOptions().getDefaultTimeout(), this.getMonitor());
+            // every worker owns its decompiler, so its options can be changed for each function
+            DecompileOptions options = decompiler.getOptions();
+            if (options.getMaxPayloadMBytes() != event.payload_mb) {
+                options.setMaxPayloadMBytes(event.payload_mb);
+                decompiler.setOptions(options);
+            }
+            DecompileResults dRes = decompiler.decompileFunction(func, event.timeout_secs, this.getMonitor());
+            event.timed_out = dRes.isTimedOut();
+            if (event.timed_out) {
+                // full simplification is too slow for this function, try the cheaper one once
+                log.info("Decompiling %s timed out after %d seconds, retry with normalize", func.getName(),
+                        event.timeout_secs);
+                event.retried = true;
+                decompiler.setSimplificationStyle("normalize");
+                try {
+                    dRes = decompiler.decompileFunction(func, event.timeout_secs, this.getMonitor());
+                } finally {
+                    decompiler.setSimplificationStyle("decompile");
+                }
+            }
             hFunction = dRes.getHighFunction();
+            if (hFunction == null)
+                throw new Exception(dRes.getErrorMessage());
         }
         catch (Exception e) {
             throw new Exception(String.format(
                     "ERROR: Failed to decompile function specified.\nError message: %s", e.getMessage()));
         }
+        finally {
+            event.failed = hFunction == null;
+            this.metrics.commit(event);
+        }
 
         return hFunction;
     }
 
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//////////////////////////////////////////////////// DecompilerPool ////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // Work done by a pool worker with the decompiler it holds. Must not write anything into the program.
+    interface DecompileTask<J, T> {
+        T analyse(J job, DecompInterface decompiler) throws Exception;
+    }
+
+    // Called on the thread which started the pool, one job after another, so that it can safely patch the program.
+    // `error` is not null if the task of this job failed.
+    interface DecompileHandler<J, T> {
+        void handle(J job, T result, Exception error) throws Exception;
+    }
+
+/**
+ * DecompilerPool: Several independently opened decompilers, one for each worker thread.
+ * Jobs are analysed concurrently, while their results are handed back to a single writer thread.
+ */
+    class DecompilerPool {
+        private final Vector<DecompInterface> decompilers;
+        // decompilers not held by any worker now
+        private final BlockingQueue<DecompInterface> idle;
+        private final ExecutorService workers;
+
+        public DecompilerPool(Program program, int size) throws Exception {
+            this.decompilers = new Vector<>();
+            this.idle = new ArrayBlockingQueue<>(Math.max(1, size));
+            try {
+                for (int i = 0; i < Math.max(1, size); i++) {
+                    DecompInterface decompiler = buildDecompiler(program);
+                    this.decompilers.add(decompiler);
+                    this.idle.add(decompiler);
+                }
+            } catch (Exception e) {
+                for (DecompInterface decompiler: this.decompilers)
+                    decompiler.dispose();
+                throw e;
+            }
+            this.workers = Executors.newFixedThreadPool(this.decompilers.size());
+        }
+
+        public int size() {
+            return this.decompilers.size();
+        }
+
+        // Analyse all jobs on the workers, and call `handler` on the current thread in completion order. Jobs are
+        // started in the order given, so the largest ones should go first to keep the workers busy until the end.
+        public <J, T> void runAll(List<J> jobs, DecompileTask<J, T> task, DecompileHandler<J, T> handler)
+                throws Exception {
+            CompletionService<T> completion = new ExecutorCompletionService<>(this.workers);
+            Map<Future<T>, J> pending = new HashMap<>();
+            for (J job: jobs) {
+                Future<T> future = completion.submit(() -> {
+                    DecompInterface decompiler = idle.take();
+                    try {
+                        return task.analyse(job, decompiler);
+                    } finally {
+                        idle.put(decompiler);
+                    }
+                });
+                pending.put(future, job);
+            }
+
+            try {
+                while (!pending.isEmpty()) {
+                    if (getMonitor().isCancelled())
+                        break;
+                    Future<T> future = completion.poll(100, TimeUnit.MILLISECONDS);
+                    if (future == null)
+                        continue;
+                    J job = pending.remove(future);
+                    T result = null;
+                    Exception error = null;
+                    try {
+                        result = future.get();
+                    } catch (ExecutionException e) {
+                        error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                    handler.handle(job, result, error);
+                }
+            } finally {
+                // cancelled or the handler failed, no need to analyse the rest
+                for (Future<T> future: pending.keySet())
+                    future.cancel(true);
+            }
+        }
+
+        public void dispose() {
+            this.workers.shutdownNow();
+            for (DecompInterface decompiler: this.decompilers)
+                decompiler.dispose();
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+/////////////////////////////////////////////////// HighFunctionCache //////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * HighFunctionCache: Decompiled functions shared by every analysis phase and every pool worker.
+ * A function is keyed by its entry address and the program modification number of the last write into its body, so
+ * a patched function is never served from the cache. Least recently used functions are dropped when the estimated
+ * memory goes over budget.
+ */
+    class HighFunctionCache {
+        // rough heap cost of one p-code op, including its varnodes and the share of blocks and high variables
+        public static final long BYTES_PER_OP = 256;
+
+        record FunctionKey(Address entry, long modification) {}
+
+        private final Program program;
+        private final long memory_budget;
+        private long memory_used;
+        // access ordered, the eldest entry is the least recently used one
+        private final LinkedHashMap<FunctionKey, HighFunction> functions;
+        private final HashMap<FunctionKey, Long> sizes;
+        // functions being decompiled now, other workers asking for the same one wait for it
+        private final HashMap<FunctionKey, FutureTask<HighFunction>> loading;
+        // entry address -> modification number of the last write into the function body
+        private final HashMap<Address, Long> last_write;
+
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long invalidations;
+
+        public HighFunctionCache(Program program, long memory_budget) {
+            this.program = program;
+            this.memory_budget = memory_budget;
+            this.memory_used = 0;
+            this.functions = new LinkedHashMap<>(16, 0.75f, true);
+            this.sizes = new HashMap<>();
+            this.loading = new HashMap<>();
+            this.last_write = new HashMap<>();
+        }
+
+        public HighFunction get(DecompInterface decompiler, Function func) throws Exception {
+            FunctionKey key;
+            FutureTask<HighFunction> task;
+            boolean owner = false;
+            synchronized (this) {
+                key = new FunctionKey(func.getEntryPoint(), this.last_write.getOrDefault(func.getEntryPoint(), 0L));
+                HighFunction cached = this.functions.get(key);
+                if (cached != null) {
+                    this.hits++;
+                    return cached;
+                }
+                task = this.loading.get(key);
+                if (task != null) {
+                    this.hits++;
+                } else {
+                    this.misses++;
+                    task = new FutureTask<>(() -> decompileFunctionUncached(decompiler, func));
+                    this.loading.put(key, task);
+                    owner = true;
+                }
+            }
+
+            if (owner)
+                task.run();
+            try {
+                HighFunction hFunction = task.get();
+                if (owner)
+                    this.put(key, hFunction);
+                return hFunction;
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } finally {
+                if (owner) {
+                    synchronized (this) {
+                        this.loading.remove(key);
+                    }
+                }
+            }
+        }
+
+        private synchronized void put(FunctionKey key, HighFunction hFunction) {
+            // failed decompilation, or the function was patched while we were decompiling it
+            if (hFunction == null || this.last_write.getOrDefault(key.entry(), 0L) != key.modification())
+                return;
+            long size = 0;
+            for (Iterator<PcodeOpAST> it = hFunction.getPcodeOps(); it.hasNext(); it.next())
+                size += BYTES_PER_OP;
+            this.functions.put(key, hFunction);
+            this.sizes.put(key, size);
+            this.memory_used += size;
+
+            Iterator<Map.Entry<FunctionKey, HighFunction>> eldest = this.functions.entrySet().iterator();
+            while (this.memory_used > this.memory_budget && this.functions.size() > 1) {
+                FunctionKey evicted = eldest.next().getKey();
+                eldest.remove();
+                this.memory_used -= this.sizes.remove(evicted);
+                this.evictions++;
+            }
+        }
+
+        // Drop the function whose body contains `addr`.
+        public synchronized void invalidate(Address addr) {
+            Function func = this.program.getFunctionManager().getFunctionContaining(addr);
+            if (func == null)
+                return;
+            Address entry = func.getEntryPoint();
+            long modification = this.program.getModificationNumber();
+            Long previous = this.last_write.put(entry, modification);
+            FunctionKey key = new FunctionKey(entry, previous == null ? 0L : previous);
+            if (this.functions.remove(key) != null) {
+                this.memory_used -= this.sizes.remove(key);
+                this.invalidations++;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(
+                    "Decompile cache: %d hits, %d misses, %d evictions, %d invalidations, %d functions, %d KB used",
+                    this.hits, this.misses, this.evictions, this.invalidations, this.functions.size(),
+                    this.memory_used >> 10);
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+///////////////////////////////////////////////////// SolverMetrics ////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * PhaseEvent: JFR event of one phase on one function. Events are committed by SolverMetrics, so that the counters are
+ * kept whether a recording is running or not. Record with -XX:StartFlightRecording and look for category OllvmSolver.
+ */
+    @Category({"OllvmSolver"})
+    static abstract class PhaseEvent extends Event {
+        @Label("Function")
+        String function;
+        @Label("Entry")
+        long entry;
+        // not recorded, start time for SolverMetrics
+        transient long start_nanos;
+
+        void start(Function func) {
+            this.function = func == null ? null : func.getName();
+            this.entry = func == null ? -1 : func.getEntryPoint().getOffset();
+            this.start_nanos = System.nanoTime();
+            this.begin();
+        }
+    }
+
+    @Name("ollvm.Decompile")
+    @Label("Decompile")
+    static class DecompileEvent extends PhaseEvent {
+        @Label("Timeout")
+        @Timespan(Timespan.SECONDS)
+        int timeout_secs;
+        @Label("Payload Limit")
+        int payload_mb;
+        @Label("Timed Out")
+        boolean timed_out;
+        // retried with "normalize" after timing out
+        @Label("Retried")
+        boolean retried;
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("ollvm.Deflat")
+    @Label("Deflat")
+    static class DeflatEvent extends PhaseEvent {
+        @Label("Stored Result Used")
+        boolean stored;
+        // deflatted from raw p-code, and given up for the decompiler
+        @Label("Raw P-code")
+        boolean raw_pcode;
+        @Label("Fell Back")
+        boolean fell_back;
+        @Label("Blocks Classified")
+        int blocks_classified;
+        @Label("Relations Found")
+        int relations;
+        @Label("DFT Nodes")
+        int dft_nodes;
+        @Label("Control Flow Maps")
+        int maps;
+    }
+
+    @Name("ollvm.GlobalVars")
+    @Label("Global Var Deobfuscation")
+    static class GlobalVarEvent extends PhaseEvent {
+        @Label("Predicates")
+        int predicates;
+        @Label("Opaque Predicates")
+        int opaque_predicates;
+    }
+
+    @Name("ollvm.Patch")
+    @Label("Patch")
+    static class PatchEvent extends PhaseEvent {
+        @Label("Patches")
+        int patches;
+        @Label("Patches Assembled")
+        int patches_assembled;
+        @Label("Patches Encoded")
+        int patches_encoded;
+        @Label("Bytes Written")
+        @DataAmount
+        long bytes_written;
+    }
+
+/**
+ * SolverMetrics: Time and counters of every phase, for each function and in total, written as a JSON report at the end
+ * of a run. It's shared by all pool workers.
+ */
+    class SolverMetrics {
+        class FunctionMetrics {
+            final String name;
+            final long entry;
+            long decompile_nanos, decompiles, decompile_timeouts, decompile_retries, decompile_failures;
+            long deflat_nanos, stored_results, raw_pcode_deflats, raw_pcode_fallbacks, blocks_classified, relations,
+                    dft_nodes, maps;
+            long gvo_nanos, predicates, opaque_predicates;
+            long patch_nanos, patches, patches_assembled, patches_encoded, bytes_written;
+
+            FunctionMetrics(String name, long entry) {
+                this.name = name;
+                this.entry = entry;
+            }
+
+            void add(FunctionMetrics other) {
+                this.decompile_nanos += other.decompile_nanos;
+                this.decompiles += other.decompiles;
+                this.decompile_timeouts += other.decompile_timeouts;
+                this.decompile_retries += other.decompile_retries;
+                this.decompile_failures += other.decompile_failures;
+                this.deflat_nanos += other.deflat_nanos;
+                this.stored_results += other.stored_results;
+                this.raw_pcode_deflats += other.raw_pcode_deflats;
+                this.raw_pcode_fallbacks += other.raw_pcode_fallbacks;
+                this.blocks_classified += other.blocks_classified;
+                this.relations += other.relations;
+                this.dft_nodes += other.dft_nodes;
+                this.maps += other.maps;
+                this.gvo_nanos += other.gvo_nanos;
+                this.predicates += other.predicates;
+                this.opaque_predicates += other.opaque_predicates;
+                this.patch_nanos += other.patch_nanos;
+                this.patches += other.patches;
+                this.patches_assembled += other.patches_assembled;
+                this.patches_encoded += other.patches_encoded;
+                this.bytes_written += other.bytes_written;
+            }
+
+            JsonObject toJson() {
+                JsonObject ret = new JsonObject();
+                if (this.name != null)
+                    ret.addProperty("function", this.name);
+                if (this.entry != -1)
+                    ret.addProperty("entry", String.format("%x", this.entry));
+                ret.addProperty("decompile_ms", this.decompile_nanos / 1e6);
+                ret.addProperty("decompiles", this.decompiles);
+                ret.addProperty("decompile_timeouts", this.decompile_timeouts);
+                ret.addProperty("decompile_retries", this.decompile_retries);
+                ret.addProperty("decompile_failures", this.decompile_failures);
+                ret.addProperty("deflat_ms", this.deflat_nanos / 1e6);
+                ret.addProperty("stored_results", this.stored_results);
+                ret.addProperty("raw_pcode_deflats", this.raw_pcode_deflats);
+                ret.addProperty("raw_pcode_fallbacks", this.raw_pcode_fallbacks);
+                ret.addProperty("blocks_classified", this.blocks_classified);
+                ret.addProperty("relations", this.relations);
+                ret.addProperty("dft_nodes", this.dft_nodes);
+                ret.addProperty("maps", this.maps);
+                ret.addProperty("gvo_ms", this.gvo_nanos / 1e6);
+                ret.addProperty("predicates", this.predicates);
+                ret.addProperty("opaque_predicates", this.opaque_predicates);
+                ret.addProperty("patch_ms", this.patch_nanos / 1e6);
+                ret.addProperty("patches", this.patches);
+                ret.addProperty("patches_assembled", this.patches_assembled);
+                ret.addProperty("patches_encoded", this.patches_encoded);
+                ret.addProperty("bytes_written", this.bytes_written);
+                return ret;
+            }
+        }
+
+        private final String program;
+        // entry -> counters, ordered by address
+        private final TreeMap<Long, FunctionMetrics> functions;
+
+        public SolverMetrics(String program) {
+            this.program = program;
+            this.functions = new TreeMap<>();
+        }
+
+        // Commit `event` and add it to the counters of its function.
+        public synchronized void commit(PhaseEvent event) {
+            long nanos = System.nanoTime() - event.start_nanos;
+            event.commit();
+            FunctionMetrics f = this.functions.computeIfAbsent(event.entry,
+                    entry -> new FunctionMetrics(event.function, entry));
+            if (event instanceof DecompileEvent e) {
+                f.decompile_nanos += nanos;
+                f.decompiles++;
+                if (e.timed_out)
+                    f.decompile_timeouts++;
+                if (e.retried)
+                    f.decompile_retries++;
+                if (e.failed)
+                    f.decompile_failures++;
+            } else if (event instanceof DeflatEvent e) {
+                f.deflat_nanos += nanos;
+                if (e.stored)
+                    f.stored_results++;
+                if (e.raw_pcode)
+                    f.raw_pcode_deflats++;
+                if (e.fell_back)
+                    f.raw_pcode_fallbacks++;
+                f.blocks_classified += e.blocks_classified;
+                f.relations += e.relations;
+                f.dft_nodes += e.dft_nodes;
+                f.maps += e.maps;
+            } else if (event instanceof GlobalVarEvent e) {
+                f.gvo_nanos += nanos;
+                f.predicates += e.predicates;
+                f.opaque_predicates += e.opaque_predicates;
+            } else if (event instanceof PatchEvent e) {
+                f.patch_nanos += nanos;
+                f.patches += e.patches;
+                f.patches_assembled += e.patches_assembled;
+                f.patches_encoded += e.patches_encoded;
+                f.bytes_written += e.bytes_written;
+            }
+        }
+
+        public synchronized FunctionMetrics total() {
+            FunctionMetrics ret = new FunctionMetrics(null, -1);
+            for (FunctionMetrics f: this.functions.values())
+                ret.add(f);
+            return ret;
+        }
+
+        public synchronized JsonObject toJson() {
+            JsonObject ret = new JsonObject();
+            ret.addProperty("program", this.program);
+            JsonObject total = this.total().toJson();
+            total.addProperty("functions", this.functions.size());
+            ret.add("total", total);
+            JsonArray functions = new JsonArray();
+            for (FunctionMetrics f: this.functions.values())
+                functions.add(f.toJson());
+            ret.add("functions", functions);
+            return ret;
+        }
+
+        public void write(File file) throws IOException {
+            try (Writer out = new FileWriter(file)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(this.toJson(), out);
+            }
+        }
+
+        @Override
+        public String toString() {
+            FunctionMetrics t = this.total();
+            return String.format("Metrics: %d decompiles in %.1f ms (%d timed out, %d retried, %d failed), " +
+                    "deflat %.1f ms, global vars %.1f ms, %d patches (%d assembled) of %d bytes in %.1f ms",
+                    t.decompiles, t.decompile_nanos / 1e6, t.decompile_timeouts, t.decompile_retries,
+                    t.decompile_failures, t.deflat_nanos / 1e6, t.gvo_nanos / 1e6, t.patches, t.patches_assembled,
+                    t.bytes_written, t.patch_nanos / 1e6);
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+/////////////////////////////////////////////////////// SolverLog //////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * SolverLog: Leveled log of a run. A message below current level costs only a comparison, the others are formatted
+ * on the calling thread and queued for a background thread, which writes them into a rotating file. Nothing is
+ * printed to the script console from that thread.
+ */
+    class SolverLog {
+        public static final int ERROR = 0;
+        public static final int WARN = 1;
+        public static final int INFO = 2;
+        public static final int DEBUG = 3;
+        public static final int TRACE = 4;
+        static final String[] LEVEL_NAMES = {"error", "warn", "info", "debug", "trace"};
+        // rotated files kept besides current one, as <file>.1 (newest) to <file>.<ROTATED_FILES>
+        public static final int ROTATED_FILES = 3;
+
+        record Message(int level, long millis, String thread, String text, Throwable error) {}
+
+        private volatile int level;
+        private File file;
+        private long max_bytes;
+        // level and file given by script arguments are not changed by config
+        private final boolean level_fixed;
+        private final boolean file_fixed;
+
+        private final BlockingQueue<Message> queue;
+        private final Thread writer_thread;
+        // queued as the last message by close
+        private final Message end;
+        // file being written by the background thread, and its size in bytes. Lines are encoded in UTF-8 whatever the
+        // platform charset is, symbols and paths are often not ASCII.
+        private OutputStream out;
+        private File out_file;
+        private long written;
+        // the file which failed to be written, null if none
+        private File failed_file;
+
+        // `default_file` is written unless script arguments or config give a log_file.
+        public SolverLog(Map<String, String> args, File default_file) throws Exception {
+            this.level = INFO;
+            this.level_fixed = args.containsKey("log_level");
+            if (this.level_fixed)
+                this.level = parseLevel(args.get("log_level"));
+            this.file_fixed = args.containsKey("log_file");
+            this.max_bytes = Long.parseLong(args.getOrDefault("log_file_mb", "64")) << 20;
+            this.file = this.file_fixed ? new File(args.get("log_file")) : default_file;
+
+            this.queue = new LinkedBlockingQueue<>();
+            this.end = new Message(ERROR, 0, null, null, null);
+            this.writer_thread = new Thread(this::drain, "OllvmSolver log");
+            this.writer_thread.setDaemon(true);
+            this.writer_thread.start();
+        }
+
+        public static int parseLevel(String name) throws Exception {
+            int ret = List.of(LEVEL_NAMES).indexOf(name);
+            if (ret < 0)
+                throw new Exception(String.format("Unknown log level %s, only %s is accepted", name,
+                        String.join(", ", LEVEL_NAMES)));
+            return ret;
+        }
+
+        // Use level and file of config, unless script arguments have given them.
+        public synchronized void configure(String level_name, String file_path, long file_mb) throws Exception {
+            if (!this.level_fixed && level_name != null)
+                this.level = parseLevel(level_name);
+            if (!this.file_fixed && file_path != null) {
+                this.file = new File(file_path);
+                this.max_bytes = file_mb << 20;
+            }
+        }
+
+        public synchronized File getFile() {
+            return this.file;
+        }
+
+        public boolean enabled(int level) {
+            return level <= this.level;
+        }
+
+        // Arguments are formatted right away, they may be changed by the caller once this returns.
+        public void log(int level, Throwable error, String format, Object... args) {
+            if (level <= this.level)
+                this.queue.add(new Message(level, System.currentTimeMillis(), Thread.currentThread().getName(),
+                        args.length == 0 ? format : String.format(format, args), error));
+        }
+
+        public void error(Throwable error, String format, Object... args) {
+            this.log(ERROR, error, format, args);
+        }
+
+        public void warn(String format, Object... args) {
+            this.log(WARN, null, format, args);
+        }
+
+        public void info(String format, Object... args) {
+            this.log(INFO, null, format, args);
+        }
+
+        public void debug(String format, Object... args) {
+            this.log(DEBUG, null, format, args);
+        }
+
+        public void trace(String format, Object... args) {
+            this.log(TRACE, null, format, args);
+        }
+
+        // background thread, write messages until close
+        private void drain() {
+            try {
+                while (true) {
+                    Message message = this.queue.take();
+                    if (message == this.end)
+                        break;
+                    try {
+                        this.write(message);
+                        // flush once the queue is empty, not for every message
+                        if (this.queue.isEmpty() && this.out != null)
+                            this.out.flush();
+                    } catch (IOException e) {
+                        this.fail(e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    if (this.out != null)
+                        this.out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void write(Message message) throws IOException {
+            StringBuilder line = new StringBuilder();
+            line.append(String.format("%tF %<tT.%<tL %-5s [%s] ", message.millis(),
+                    LEVEL_NAMES[message.level()].toUpperCase(), message.thread()));
+            line.append(message.text());
+            if (message.error() != null) {
+                StringWriter trace = new StringWriter();
+                message.error().printStackTrace(new PrintWriter(trace));
+                line.append('\n').append(trace.toString().stripTrailing());
+            }
+
+            File target;
+            synchronized (this) {
+                target = this.file;
+            }
+            // messages for a file failed are dropped, until config gives another one
+            if (target.equals(this.failed_file))
+                return;
+            if (!target.equals(this.out_file)) {
+                if (this.out != null)
+                    this.out.close();
+                this.out = null;
+                this.out_file = target;
+                this.open(target);
+            }
+            byte[] bytes = line.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+            this.out.write(bytes);
+            this.written += bytes.length;
+            if (this.written > this.max_bytes)
+                this.rotate(target);
+        }
+
+        private void open(File target) throws IOException {
+            this.out = new BufferedOutputStream(new FileOutputStream(target, true));
+            this.out_file = target;
+            this.written = target.length();
+        }
+
+        // Writing or rotating current file failed, report it once and drop the messages for it, so that the queue
+        // is still drained.
+        private void fail(IOException error) {
+            this.failed_file = this.out_file;
+            System.err.printf("OllvmSolver: failed to write log %s, later messages are dropped: %s%n",
+                    this.failed_file, error.getMessage());
+            try {
+                if (this.out != null)
+                    this.out.close();
+            } catch (IOException ignored) {
+            }
+            this.out = null;
+            this.out_file = null;
+        }
+
+        // <file>.<i> -> <file>.<i + 1>, the oldest one is dropped
+        private void rotate(File target) throws IOException {
+            this.out.close();
+            new File(target.getPath() + "." + ROTATED_FILES).delete();
+            for (int i = ROTATED_FILES - 1; i >= 1; i--)
+                new File(target.getPath() + "." + i).renameTo(new File(target.getPath() + "." + (i + 1)));
+            target.renameTo(new File(target.getPath() + ".1"));
+            this.open(target);
+        }
+
+        // Write all messages queued and stop the background thread.
+        public void close() throws InterruptedException {
+            this.queue.add(this.end);
+            this.writer_thread.join();
+        }
+    }
+
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 ///////////////////////////////////////////////////// SolverConfig /////////////////////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -162,12 +1265,56 @@ public class OllvmSolver extends GhidraScript {
         Vector<Symbol> user_inputs_gvo;
         // you need to specify functions that is obfuscated by global vars
         Vector<Symbol> functions_for_gvo;
+        // number of decompilers working at the same time, 0 if not given
+        int decompiler_threads;
+        // decompile limits of a function of DECOMPILE_SCALE_BYTES or less
+        int decompile_timeout_secs;
+        int decompile_payload_mb;
+        // memory budget of HighFunctionCache in MB
+        long decompile_cache_mb;
+        // budget of data flow tree of a state variable
+        int dft_max_nodes;
+        int dft_max_depth;
+        // only accept "decompiler", "raw_pcode"
+        String deflat_mode;
+        // rounds of discovering and deflatting patched functions again
+        int fixed_point_rounds;
+        // path of patch journal, null if not used
+        String patch_journal;
+        // only accept "record", "replay", "revert"
+        String journal_mode;
+        // directory of ResultStore, null if not used
+        String result_store;
+        // directory of PcodeSnapshot files, null if not used
+        String pcode_snapshots;
+        // path of SolverMetrics report, null if not used
+        String metrics_report;
+        // SolverLog level and file, null to keep the ones of script arguments or defaults
+        String log_level;
+        String log_file;
+        long log_file_mb;
 
         public SolverConfig() {
             this.target_local_vars = new Vector<>();
             this.global_var_deobfuscation_mode = "auto";
             this.user_inputs_gvo = new Vector<>();
             this.functions_for_gvo = new Vector<>();
+            this.decompiler_threads = 0;
+            this.decompile_timeout_secs = 30;
+            this.decompile_payload_mb = 50;
+            this.decompile_cache_mb = 512;
+            this.dft_max_nodes = 1 << 20;
+            this.dft_max_depth = 1 << 16;
+            this.deflat_mode = "decompiler";
+            this.fixed_point_rounds = 0;
+            this.patch_journal = null;
+            this.journal_mode = "record";
+            this.result_store = null;
+            this.pcode_snapshots = null;
+            this.metrics_report = null;
+            this.log_level = null;
+            this.log_file = null;
+            this.log_file_mb = 64;
         }
 
         public SolverConfig(String json_path) throws Exception {
@@ -182,39 +1329,140 @@ public class OllvmSolver extends GhidraScript {
             this.global_var_deobfuscation_mode = ret.global_var_deobfuscation_mode;
             this.user_inputs_gvo = ret.user_inputs_gvo;
             this.functions_for_gvo = ret.functions_for_gvo;
+            this.decompiler_threads = ret.decompiler_threads;
+            this.decompile_timeout_secs = ret.decompile_timeout_secs;
+            this.decompile_payload_mb = ret.decompile_payload_mb;
+            this.decompile_cache_mb = ret.decompile_cache_mb;
+            this.dft_max_nodes = ret.dft_max_nodes;
+            this.dft_max_depth = ret.dft_max_depth;
+            this.deflat_mode = ret.deflat_mode;
+            this.fixed_point_rounds = ret.fixed_point_rounds;
+            this.patch_journal = ret.patch_journal;
+            this.journal_mode = ret.journal_mode;
+            this.result_store = ret.result_store;
+            this.pcode_snapshots = ret.pcode_snapshots;
+            this.metrics_report = ret.metrics_report;
+            this.log_level = ret.log_level;
+            this.log_file = ret.log_file;
+            this.log_file_mb = ret.log_file_mb;
         }
 
-        public void solve(OllvmSolver main, Program program, DecompInterface decompiler) throws Exception {
+        public void solve(OllvmSolver main, Program program, DecompilerPool pool) throws Exception {
             // handle every local variable obfuscation (Control Flow Flattening)
-            println("[***] Start local state variable deobfuscation (Control Flow Flattening)\n");
+            log.info("[***] Start local state variable deobfuscation (Control Flow Flattening)");
+            Set<Address> deflatted = new HashSet<>();
             for (LocalStateVarDeflatter deflatter: target_local_vars) {
-                printf("Solving variable initialized in %#x\n", deflatter.getVar_init_address_ctor());
-                Function target_func = main.getFunctionContaining(main.toAddr(deflatter.getVar_init_address_ctor()));
-                printf("Start handling function %s, wait a second...\n", target_func.getName());
-                deflatter.postInitialization(main, program, decompiler);
-                try {
-                    deflatter.Deflat();
-                } catch (Exception e) {
-                    printf("Exception occurred while deflatting %#x\n",
-                            deflatter.getVar_init_address_ctor());
-                    e.printStackTrace();
+                deflatter.postInitialization(main, program, this);
+                deflatted.add(deflatter.getVar_init_address());
+            }
+            Vector<Function> patched = this.deflatAll(main, pool, target_local_vars);
+
+            // a dispatcher removed may expose another one, look for it again in the functions just patched
+            for (int round = 1; round <= fixed_point_rounds && !patched.isEmpty(); round++) {
+                log.info("[***] Fixed point round %d, discover state variables of %d patched functions", round,
+                        patched.size());
+                StateVarDiscovery discovery = new StateVarDiscovery(main, program, this);
+                Vector<LocalStateVarDeflatter> found = new Vector<>();
+                for (StateVarDiscovery.Candidate candidate: discovery.discover(pool, patched)) {
+                    // the ones deflatted before are still stored into, skip them
+                    if (!deflatted.add(candidate.init_address))
+                        continue;
+                    LocalStateVarDeflatter deflatter = new LocalStateVarDeflatter(candidate.size,
+                            candidate.init_address.getOffset());
+                    deflatter.postInitialization(main, program, this);
+                    found.add(deflatter);
+                }
+                if (found.isEmpty()) {
+                    log.info("No new state variable found, fixed point reached in round %d", round);
+                    patched.clear();
+                    break;
                 }
+                patched = this.deflatAll(main, pool, found);
             }
+            if (!patched.isEmpty() && fixed_point_rounds > 0)
+                log.warn("%d functions were still patched in the last of %d fixed point rounds", patched.size(),
+                        fixed_point_rounds);
+
             // handle read-only global vars
-            println("[***] Start global variable deobfuscation (Control Flow Duplication)\n");
+            log.info("[***] Start global variable deobfuscation (Control Flow Duplication)");
             GlobalVarHandler global_var_handler = null;
             if (global_var_deobfuscation_mode.equals("auto"))
                 global_var_handler = new GlobalVarHandler();
             else if (global_var_deobfuscation_mode.equals("manual"))
                 global_var_handler = new GlobalVarHandler(user_inputs_gvo);
             if (global_var_handler != null) {
+                GlobalVarHandler handler = global_var_handler;
+                Vector<Function> functions = new Vector<>();
                 for (Symbol sym: this.functions_for_gvo) {
-                    Function func = currentProgram.getListing().getFunctionAt(sym.getAddress());
-
-                    global_var_handler.deobfuscate(decompileFunction(decompiler, func));
-                    return;
+                    Function func = program.getListing().getFunctionAt(sym.getAddress());
+                    // a label which is not the entry of any function, nothing to decompile
+                    if (func == null) {
+                        log.warn("No function at %s(%#x) in functions_for_gvo, skipped", sym.getName(),
+                                sym.getAddress().getOffset());
+                        continue;
+                    }
+                    functions.add(func);
                 }
+                functions.sort(Comparator.comparingLong(OllvmSolver::functionSize).reversed());
+                log.info("%d read-only global addresses found", handler.index.size());
+                globalIndex = handler.index;
+                try {
+                    pool.runAll(functions,
+                            (func, decompiler) -> handler.analyse(decompileFunction(decompiler, func)),
+                            (func, predicates, error) -> {
+                                if (error != null) {
+                                    log.error(error, "Exception occurred while analysing %s", func.getName());
+                                    return;
+                                }
+                                handler.patch(func, predicates);
+                                functionsHandled++;
+                            });
+                } finally {
+                    globalIndex = null;
+                }
+            }
+        }
+
+        // Deflat `deflatters` on the pool and patch them, return functions patched. State vars of the same function
+        // are deflatted from one decompilation and patched together, the second one would see a stale function
+        // otherwise.
+        private Vector<Function> deflatAll(OllvmSolver main, DecompilerPool pool,
+                                           Vector<LocalStateVarDeflatter> deflatters) throws Exception {
+            Vector<Function> ret = new Vector<>();
+            Map<Address, StateVarGroup> by_function = new LinkedHashMap<>();
+            for (LocalStateVarDeflatter deflatter: deflatters) {
+                Function func = main.getFunctionContaining(deflatter.getVar_init_address());
+                Address key = func == null ? deflatter.getVar_init_address() : func.getEntryPoint();
+                by_function.computeIfAbsent(key, k -> new StateVarGroup(func)).add(deflatter);
             }
+            Vector<StateVarGroup> groups = new Vector<>(by_function.values());
+            // largest functions first, so that no worker is left with a big one at the end
+            groups.sort(Comparator.comparingLong((StateVarGroup g) -> functionSize(g.getFunction())).reversed());
+            log.info("Analysing %d state variables of %d functions with %d decompilers", deflatters.size(),
+                    groups.size(), pool.size());
+            pool.runAll(groups,
+                    (group, decompiler) -> group.analyse(decompiler),
+                    (group, cfg, error) -> {
+                        for (Map.Entry<LocalStateVarDeflatter, Exception> failed: group.getErrors().entrySet())
+                            log.error(failed.getValue(), "Exception occurred while deflatting %#x",
+                                    failed.getKey().getVar_init_address_ctor());
+                        if (error == null) {
+                            log.info("Patching function %s, %d state variables initialized in %s",
+                                    group.getFunction().getName(), group.size() - group.getErrors().size(), group);
+                            try {
+                                int before = patchesApplied;
+                                group.recoverCFG(cfg);
+                                functionsHandled++;
+                                if (patchesApplied != before)
+                                    ret.add(group.getFunction());
+                                return;
+                            } catch (Exception e) {
+                                error = e;
+                            }
+                        }
+                        log.error(error, "Exception occurred while deflatting %s", group);
+                    });
+            return ret;
         }
     }
 
@@ -271,15 +1519,64 @@ public class OllvmSolver extends GhidraScript {
                 ret.functions_for_gvo.add(sym);
             }
 
+            ret.decompiler_threads = (int) optionalNumber(object, "decompiler_threads", 1, ret.decompiler_threads);
+            ret.decompile_timeout_secs = (int) optionalNumber(object, "decompile_timeout_secs", 1,
+                    ret.decompile_timeout_secs);
+            ret.decompile_payload_mb = (int) optionalNumber(object, "decompile_payload_mb", 1,
+                    ret.decompile_payload_mb);
+            ret.decompile_cache_mb = optionalNumber(object, "decompile_cache_mb", 0, ret.decompile_cache_mb);
+            ret.dft_max_nodes = (int) optionalNumber(object, "dft_max_nodes", 1, ret.dft_max_nodes);
+            ret.dft_max_depth = (int) optionalNumber(object, "dft_max_depth", 1, ret.dft_max_depth);
+            ret.deflat_mode = optionalString(object, "deflat_mode", ret.deflat_mode, "decompiler", "raw_pcode");
+            ret.fixed_point_rounds = (int) optionalNumber(object, "fixed_point_rounds", 0, ret.fixed_point_rounds);
+
+            ret.patch_journal = optionalString(object, "patch_journal", ret.patch_journal);
+            ret.journal_mode = optionalString(object, "journal_mode", ret.journal_mode, "record", "replay", "revert");
+            if (!ret.journal_mode.equals("record") && ret.patch_journal == null)
+                throw new JsonParseException(String.format(
+                        "Wrong json format, patch_journal must be given to %s it.", ret.journal_mode));
+            ret.result_store = optionalString(object, "result_store", ret.result_store);
+            ret.pcode_snapshots = optionalString(object, "pcode_snapshots", ret.pcode_snapshots);
+            ret.metrics_report = optionalString(object, "metrics_report", ret.metrics_report);
+            ret.log_level = optionalString(object, "log_level", ret.log_level, SolverLog.LEVEL_NAMES);
+            ret.log_file = optionalString(object, "log_file", ret.log_file);
+            ret.log_file_mb = optionalNumber(object, "log_file_mb", 1, ret.log_file_mb);
+
             return ret;
         }
 
-        public Symbol objectToSymbol(JsonElement element) throws JsonParseException {
-            if (!element.isJsonPrimitive())
-                throw new JsonParseException(
-                        "Wrong format for symbol, should be a number for address or a string for symbol name");
-            JsonPrimitive primitive = element.getAsJsonPrimitive();
-            if (primitive.isString()) {
+        // get an optional string from json object, which must be one of `accepted` if any is given
+        public String optionalString(JsonObject object, String name, String fallback, String... accepted)
+                throws JsonParseException {
+            JsonElement element = object.get(name);
+            if (element == null)
+                return fallback;
+            if (!element.isJsonPrimitive() || !element.getAsJsonPrimitive().isString())
+                throw new JsonParseException(String.format("Wrong json format, %s must be a string.", name));
+            String ret = element.getAsString();
+            if (accepted.length != 0 && !List.of(accepted).contains(ret))
+                throw new JsonParseException(String.format(
+                        "Wrong %s, only %s is accepted", name, String.join(", ", accepted)));
+            return ret;
+        }
+
+        // get an optional number not less than `min` from json object, `fallback` is returned if it's absent
+        public long optionalNumber(JsonObject object, String name, long min, long fallback) throws JsonParseException {
+            JsonElement element = object.get(name);
+            if (element == null)
+                return fallback;
+            if (!element.isJsonPrimitive() || !element.getAsJsonPrimitive().isNumber() || element.getAsLong() < min)
+                throw new JsonParseException(String.format(
+                        "Wrong json format, %s must be a number not less than %d.", name, min));
+            return element.getAsLong();
+        }
+
+        public Symbol objectToSymbol(JsonElement element) throws JsonParseException {
+            if (!element.isJsonPrimitive())
+                throw new JsonParseException(
+                        "Wrong format for symbol, should be a number for address or a string for symbol name");
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isString()) {
                 SymbolIterator si = currentProgram.getSymbolTable().getSymbols(primitive.getAsString());
                 Symbol ret = null;
                 if (si.hasNext())
@@ -288,7 +1585,7 @@ public class OllvmSolver extends GhidraScript {
                     throw new JsonParseException(String.format("No symbol named %s found", primitive.getAsString()));
             } else if (primitive.isNumber()) {
                 Symbol[] symbols = currentProgram.getSymbolTable().getSymbols(toAddr(primitive.getAsLong()));
-                println("length: " + String.valueOf(symbols.length));
+                log.debug("%d symbols at %#x", symbols.length, primitive.getAsLong());
                 if (symbols.length != 0)
                     return symbols[0];
                 else
@@ -317,9 +1614,15 @@ public class OllvmSolver extends GhidraScript {
         private Address var_init_address;
         private OllvmSolver solverMain;
         private Program program;
-
-        private Memory mem;
-        private DecompInterface decompiler;
+        // budget of data flow tree
+        private int dft_max_nodes;
+        private int dft_max_depth;
+        // directory to write p-code snapshots, null if not used
+        private String pcode_snapshots;
+        // try raw p-code before decompiling
+        private boolean raw_pcode;
+        // key of ResultStore for the function being analysed, null if not stored
+        private String store_key;
 
         public long getVar_size() {
             return this.var_size;
@@ -329,305 +1632,740 @@ public class OllvmSolver extends GhidraScript {
             return this.var_init_address_ctor;
         }
 
+        public Address getVar_init_address() {
+            return this.var_init_address;
+        }
+
+        public boolean isRaw_pcode() {
+            return this.raw_pcode;
+        }
+
         public LocalStateVarDeflatter(long var_size, long var_init_address) {
             this.var_size = var_size;
             this.var_init_address_ctor = var_init_address;
         }
 
-        // MUST BE CALLED AFTER NEW! we cannot analyse without a program and a pre-configured decompiler!
-        public void postInitialization(OllvmSolver main, Program program, DecompInterface decompiler) {
+        // MUST BE CALLED AFTER NEW! we cannot analyse without a program!
+        public void postInitialization(OllvmSolver main, Program program, SolverConfig config) {
             this.solverMain = main;
             this.program = program;
-            this.decompiler = decompiler;
+            this.dft_max_nodes = config.dft_max_nodes;
+            this.dft_max_depth = config.dft_max_depth;
+            this.pcode_snapshots = config.pcode_snapshots;
+            this.raw_pcode = config.deflat_mode.equals("raw_pcode");
             this.var_init_address = main.toAddr(this.var_init_address_ctor);
-            this.mem = program.getMemory();
         }
 
-        public void Deflat() throws Exception {
-            Function func = solverMain.getFunctionContaining(this.var_init_address);
-            // variable initialization address doesn't belong to any known function, cannot work anymore
-            if (func == null) {
-                throw new Exception(String.format("ERROR: No function contains init address given: %#x",
-                        this.var_init_address.getOffset()));
+        public void Deflat(DecompInterface decompiler) throws Exception {
+            this.recoverCFG(this.analyse(decompiler));
+        }
+
+        // Recover the control flow without touching the program, so that it can run on any pool worker with its own
+        // decompiler. The result should be given to recoverCFG on the writer thread.
+        public ControlFlowMaps analyse(DecompInterface decompiler) throws Exception {
+            StateVarGroup group = new StateVarGroup(solverMain.getFunctionContaining(this.var_init_address));
+            group.add(this);
+            return group.analyse(decompiler);
+        }
+
+        // Result of the same function and config analysed before, null if there is none. `store_key` is kept for
+        // the result found later.
+        ControlFlowMaps loadStored(Function func) throws Exception {
+            this.store_key = null;
+            if (resultStore == null)
+                return null;
+            this.store_key = resultStore.key(func, this);
+            ControlFlowMaps stored = resultStore.load(this.store_key);
+            if (stored != null) {
+                log.info("Function %s unchanged, use stored result of %d blocks", func.getName(), stored.size());
+                DeflatEvent event = new DeflatEvent();
+                event.start(func);
+                event.stored = true;
+                event.maps = stored.size();
+                metrics.commit(event);
+            }
+            return stored;
+        }
+
+        // Deflat from raw p-code of `group`'s function, null if it's not enough and the function must be decompiled.
+        ControlFlowMaps deflatRaw(StateVarGroup group) {
+            Function func = group.getFunction();
+            DeflatEvent event = new DeflatEvent();
+            event.start(func);
+            event.raw_pcode = true;
+            try {
+                return this.deflat(group.rawPcode(), event, this.store_key, true);
+            } catch (Exception e) {
+                event.fell_back = true;
+                log.debug("Raw p-code of %s is not enough for %#x, decompile it: %s", func.getName(),
+                        this.var_init_address_ctor, e.getMessage());
+                return null;
+            } finally {
+                metrics.commit(event);
             }
+        }
+
+        // Deflat from `graph` captured from the decompiled function.
+        ControlFlowMaps deflatDecompiled(Function func, PcodeSnapshot graph) throws Exception {
+            DeflatEvent event = new DeflatEvent();
+            event.start(func);
+            try {
+                return this.deflat(graph, event, this.store_key, false);
+            } finally {
+                metrics.commit(event);
+            }
+        }
 
-            // decompile target function, this step won't fail normally
-            HighFunction hFunction = solverMain.decompileFunction(decompiler, func);
+        // Run DeflatCore on `graph` of the target function and store the result. If `complete`, every value compared
+        // by the dispatcher must be given to state var somewhere and no value may be compared twice, otherwise the
+        // graph is rejected with an Exception.
+        private ControlFlowMaps deflat(PcodeSnapshot graph, DeflatEvent event, String store_key, boolean complete)
+                throws Exception {
+            if (this.pcode_snapshots != null)
+                graph.write(new File(this.pcode_snapshots, String.format("%s_%x.%solp", graph.name, graph.entry,
+                        event.raw_pcode ? "raw." : "")));
+            DeflatCore core = new DeflatCore(graph, (int) this.var_size, this.dft_max_nodes, this.dft_max_depth);
 
             // get the VarNode of the state variable through specified instruction address
-            Varnode dispatcher = this.getStateVarNode(hFunction);
+            int dispatcher = core.stateVarNode(this.var_init_address.getOffset());
+            if (dispatcher == -1)
+                throw new Exception(String.format("ERROR: No state variable initialized at %#x",
+                        this.var_init_address.getOffset()));
+            if (log.enabled(SolverLog.DEBUG))
+                log.debug("Found state variable: %s", graph.varnodeToString(dispatcher));
 
-            // find the relationships between different state variable values and target blocks
-            this.findRealBlockRelations(hFunction, dispatcher);
+            // label every block once, later stages only read the labels
+            BlockClassification classes = core.classifyBlocks(dispatcher);
+            event.blocks_classified = classes.size();
 
-            ConditionBlock[] relations = this.findRealBlockRelations(hFunction, dispatcher);
+            log.debug("%s", classes);
+
+            // find the relationships between different state variable values and target blocks
+            ConditionIndex relations = core.findRealBlockRelations(classes);
+            event.relations = relations.size();
 
-            if (DEBUG)
-                for (ConditionBlock cb: relations) {
-                    println(cb.toString());
+            if (log.enabled(SolverLog.TRACE))
+                for (int i = 0; i < relations.size(); i++) {
+                    log.trace("%s", relations.relation(i));
                 }
+            for (String problem: relations.problems) {
+                if (complete)
+                    throw new Exception(problem);
+                log.warn("%s", problem);
+            }
 
-            DefBlock dft = this.buildDispatcherDFT(hFunction, dispatcher.getDef());
+            DispatcherDFT dft = core.buildDispatcherDFT(classes, graph.def(dispatcher));
+            event.dft_nodes = dft.size();
+            if (log.enabled(SolverLog.TRACE))
+                log.trace("%s", new DefBlock(graph, dft, DispatcherDFT.ROOT));
+
+            if (complete) {
+                Set<Long> assigned = new HashSet<>();
+                for (int leaf: dft.leaves())
+                    assigned.add(dft.constant(leaf));
+                for (long constant: relations.constants)
+                    if (!assigned.contains(constant))
+                        throw new Exception(String.format("state var value %#x is never assigned", constant));
+            }
 
-            ControlFlowMap[] cfg = this.recoverExecFlow(relations, dft);
+            ControlFlowMaps cfg = core.recoverExecFlow(classes, relations, dft);
+            event.maps = cfg.size();
 
-            if (DEBUG)
-                for(ControlFlowMap c: cfg) {
-                    println(c.toString());
+            if (log.enabled(SolverLog.TRACE))
+                for (int i = 0; i < cfg.size(); i++) {
+                    log.trace("%s", cfg.map(i));
                 }
 
-            this.recoverCFG(cfg);
+            if (store_key != null)
+                resultStore.save(store_key, relations, cfg);
+            return cfg;
         }
 
-        Varnode getStateVarNode(HighFunction hFunction) throws Exception {
-            // get all p-codes of this address
-            Iterator<PcodeOpAST> ops = hFunction.getPcodeOps(this.var_init_address);
-            PcodeOp copy_pcode = null;
-            while (ops.hasNext()) {
-                PcodeOpAST op = ops.next();
-                // we regard COPY a Constant as the initialization of the state variable
-                if (op.getOpcode() == PcodeOp.COPY && op.getInput(0).isConstant()) {
-                    printf("Found COPY from const to varnode: %s\n", op);
-                    copy_pcode = op;
+        // Decompile and get the fraction of `constants` that the dispatcher of this state variable compares with, so
+        // that StateVarDiscovery can tell a real state variable from a slot which just holds some large numbers.
+        public double confirm(DecompInterface decompiler, long[] constants) throws Exception {
+            Function func = solverMain.getFunctionContaining(this.var_init_address);
+            PcodeSnapshot graph = capturePcode(solverMain.decompileFunction(decompiler, func));
+            DeflatCore core = new DeflatCore(graph, (int) this.var_size, this.dft_max_nodes, this.dft_max_depth);
+            int dispatcher = core.stateVarNode(this.var_init_address.getOffset());
+            if (dispatcher == -1)
+                return 0;
+            ConditionIndex relations = core.findRealBlockRelations(core.classifyBlocks(dispatcher));
+            int found = 0;
+            for (long constant: constants)
+                if (relations.contains(constant))
+                    found++;
+            return (double) found / constants.length;
+        }
+
+        void recoverCFG(ControlFlowMaps cfg) throws Exception {
+            String arch = this.program.getLanguage().getProcessor().toString();
+            if(arch.equals("x86"))
+                this.recoverCFGx86(cfg);
+        }
+
+        void recoverCFGx86(ControlFlowMaps cfg) throws Exception {
+            CFGPatcherX86 patcher = new CFGPatcherX86(this.program,
+                    solverMain.getFunctionContaining(this.var_init_address), cfg);
+            patcher.patchAll();
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//////////////////////////////////////////////////// StateVarGroup /////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * StateVarGroup: State variables of one function, for nested flattening or several dispatchers. They are resolved
+ * from a single decompilation of the function and all of their maps are patched at once.
+ */
+    class StateVarGroup {
+        // null if init addresses don't belong to any known function
+        private final Function function;
+        private final Vector<LocalStateVarDeflatter> deflatters;
+        // state vars failed while others of the group are patched
+        private final Map<LocalStateVarDeflatter, Exception> errors;
+        // raw p-code of the function captured by the first state var asking for it, or why it cannot be captured
+        private PcodeSnapshot raw_graph;
+        private Exception raw_error;
+
+        public StateVarGroup(Function function) {
+            this.function = function;
+            this.deflatters = new Vector<>();
+            this.errors = new LinkedHashMap<>();
+        }
+
+        public Function getFunction() {
+            return this.function;
+        }
+
+        public Map<LocalStateVarDeflatter, Exception> getErrors() {
+            return this.errors;
+        }
+
+        public int size() {
+            return this.deflatters.size();
+        }
+
+        public void add(LocalStateVarDeflatter deflatter) {
+            this.deflatters.add(deflatter);
+        }
+
+        PcodeSnapshot rawPcode() throws Exception {
+            if (this.raw_error != null)
+                throw this.raw_error;
+            if (this.raw_graph == null) {
+                try {
+                    this.raw_graph = captureRawPcode(this.function);
+                } catch (Exception e) {
+                    this.raw_error = e;
+                    throw e;
                 }
             }
+            return this.raw_graph;
+        }
 
-            // We need to trace the output of the p-code we found above, until we meet a MULTIEQUAL p-code,
-            // the output of MULTIEQUAL p-code is the VarNode of our state variable we want to find.
-            while(copy_pcode != null && copy_pcode.getOpcode() != PcodeOp.MULTIEQUAL) {
-                if(copy_pcode.getOutput() == null) {
-                    throw new Exception(String.format("No output found in %s\n", copy_pcode));
+        // Recover the control flow of every state var without touching the program, the function is decompiled at
+        // most once. A state var that fails is put in `errors` and left out, an Exception is thrown only if none of
+        // them is left.
+        public ControlFlowMaps analyse(DecompInterface decompiler) throws Exception {
+            // variable initialization address doesn't belong to any known function, cannot work anymore
+            if (this.function == null) {
+                throw new Exception(String.format("ERROR: No function contains init address given: %s", this));
+            }
+            this.errors.clear();
+            Map<LocalStateVarDeflatter, ControlFlowMaps> found = new HashMap<>();
+            Vector<LocalStateVarDeflatter> rest = new Vector<>();
+            for (LocalStateVarDeflatter deflatter: this.deflatters) {
+                try {
+                    ControlFlowMaps stored = deflatter.loadStored(this.function);
+                    if (stored != null)
+                        found.put(deflatter, stored);
+                    else if (deflatter.isRaw_pcode() && (stored = deflatter.deflatRaw(this)) != null)
+                        found.put(deflatter, stored);
+                    else
+                        rest.add(deflatter);
+                } catch (Exception e) {
+                    this.errors.put(deflatter, e);
                 }
-                copy_pcode = copy_pcode.getOutput().getLoneDescend();
-                if(copy_pcode == null) {
-                    throw new Exception("ERROR: Failed to find lone descendant for P-code");
+            }
+
+            // decompile target function once for all the rest, this step won't fail normally
+            if (!rest.isEmpty()) {
+                PcodeSnapshot graph = null;
+                try {
+                    graph = capturePcode(decompileFunction(decompiler, this.function));
+                } catch (Exception e) {
+                    for (LocalStateVarDeflatter deflatter: rest)
+                        this.errors.put(deflatter, e);
+                }
+                if (graph != null) {
+                    for (LocalStateVarDeflatter deflatter: rest) {
+                        try {
+                            found.put(deflatter, deflatter.deflatDecompiled(this.function, graph));
+                        } catch (Exception e) {
+                            this.errors.put(deflatter, e);
+                        }
+                    }
+                }
+            }
+
+            // every block end is patched once, a state var rewriting a block end of another one differently is
+            // left out
+            // block end -> its entry in `ret`
+            Map<Long, Integer> patched = new HashMap<>();
+            Map<Long, LocalStateVarDeflatter> owners = new HashMap<>();
+            ControlFlowMaps ret = new ControlFlowMaps(16);
+            for (LocalStateVarDeflatter deflatter: this.deflatters) {
+                ControlFlowMaps cfg = found.get(deflatter);
+                if (cfg == null)
+                    continue;
+                int[] added = new int[cfg.size()];
+                int count = 0;
+                try {
+                    for (int i = 0; i < cfg.size(); i++) {
+                        long stop = cfg.targetStop(i);
+                        Integer other = patched.get(stop);
+                        if (other == null) {
+                            added[count++] = i;
+                            continue;
+                        }
+                        if (!sameTargets(cfg, i, ret, other))
+                            throw new Exception(String.format(
+                                    "Block end at %#x is patched differently by state var at %#x", stop,
+                                    owners.get(stop).getVar_init_address_ctor()));
+                    }
+                } catch (Exception e) {
+                    this.errors.put(deflatter, e);
+                    continue;
+                }
+                for (int k = 0; k < count; k++) {
+                    patched.put(cfg.targetStop(added[k]), ret.size());
+                    owners.put(cfg.targetStop(added[k]), deflatter);
+                    ret.add(cfg, added[k]);
                 }
-                if (DEBUG)
-                    printf("Lone descendant found: %s\n", copy_pcode);
             }
 
-            assert copy_pcode != null;
+            if (this.errors.size() == this.deflatters.size()) {
+                if (this.errors.size() == 1) {
+                    Exception error = this.errors.values().iterator().next();
+                    this.errors.clear();
+                    throw error;
+                }
+                throw new Exception(String.format("No state variable of %s deflatted", this.function.getName()));
+            }
+            return ret;
+        }
 
-            return copy_pcode.getOutput();
+        private static boolean sameTargets(ControlFlowMaps a, int i, ControlFlowMaps b, int j) {
+            return a.trueStart(i) == b.trueStart(j) && a.falseStart(i) == b.falseStart(j);
         }
 
-        // Get all blocks that use state variable as conditions
-        ConditionBlock[] findRealBlockRelations(HighFunction hFunction, Varnode target) {
-            Vector<ConditionBlock> ret = new Vector<>();
-            for (PcodeBlockBasic block: hFunction.getBasicBlocks()){
-                // Only CBRANCH has 2 output, we discard blocks without CBRANCH as its end
-                if(block.getOutSize() != 2)
-                    continue;
+        // Patch the maps of all state vars in one go.
+        void recoverCFG(ControlFlowMaps cfg) throws Exception {
+            this.deflatters.get(0).recoverCFG(cfg);
+        }
 
-                PcodeOp block_end = block.getLastOp();
-                if(block_end.getOpcode() != PcodeOp.CBRANCH)
-                    continue;
+        @Override
+        public String toString() {
+            StringBuilder ret = new StringBuilder();
+            for (LocalStateVarDeflatter deflatter: this.deflatters) {
+                if (ret.length() != 0)
+                    ret.append(", ");
+                ret.append(String.format("%#x", deflatter.getVar_init_address_ctor()));
+            }
+            return ret.toString();
+        }
+    }
 
-                // CBRANCH has 2 inputs, [0] is jump target, [1] is condition
-                Varnode condition = block_end.getInput(1);
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////////// FlowGraph ///////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-                // get the p-code which defines the value of condition
-                PcodeOp condition_def = condition.getDef();
-                if(!(condition_def.getOpcode() == PcodeOp.INT_EQUAL ||
-                        condition_def.getOpcode() == PcodeOp.INT_NOTEQUAL))
-                    continue;
+/**
+ * FlowGraph: A decompiled function as seen by DeflatCore. Basic blocks, p-code ops and varnodes are numbered from 0 and
+ * -1 means none, opcodes are the numbers of PcodeOp. PcodeSnapshot implements it for both live and offline analysis.
+ */
+    interface FlowGraph {
+        int blockCount();
 
-                for (Iterator<PcodeOp> it = block.getIterator(); it.hasNext(); ) {
-                    PcodeOp op = it.next();
+        long blockStart(int block);
 
-                    if (DEBUG)
-                        println(op.toString());
-                }
+        long blockStop(int block);
 
-                if(condition_def.getInput(0).isConstant() &&
-                        condition_def.getInput(1).equals(target))
-                    ret.add(new ConditionBlock(
-                            condition_def.getInput(0).getOffset(),
-                            condition_def.getOpcode() == PcodeOp.INT_EQUAL ?
-                                    (PcodeBlockBasic) block.getTrueOut() : (PcodeBlockBasic) block.getFalseOut(),
-                            condition_def.getOpcode()
-                    ));
-                else if(condition_def.getInput(1).isConstant() &&
-                        condition_def.getInput(0).equals(target))
-                    ret.add(new ConditionBlock(
-                            condition_def.getInput(1).getOffset(),
-                            condition_def.getOpcode() == PcodeOp.INT_EQUAL ?
-                                    (PcodeBlockBasic) block.getTrueOut() : (PcodeBlockBasic) block.getFalseOut(),
-                            condition_def.getOpcode()
-                    ));
+        // number of successors, a block ending with CBRANCH has 2
+        int outSize(int block);
+
+        // successors of a block ending with CBRANCH, when it jumps or not
+        int trueOut(int block);
+
+        int falseOut(int block);
+
+        // a block of a single CMOVxx instruction
+        boolean isCmovSelector(int block);
+
+        // ops of a block are numbered contiguously, from firstOp
+        int firstOp(int block);
+
+        int opCount(int block);
+
+        int opCount();
+
+        int opcode(int op);
+
+        long opAddress(int op);
+
+        int opBlock(int op);
+
+        int output(int op);
+
+        int inputCount(int op);
+
+        int input(int op, int i);
+
+        boolean isConstant(int varnode);
+
+        // a varnode in memory, like a global var
+        boolean isAddress(int varnode);
+
+        long offset(int varnode);
+
+        int size(int varnode);
+
+        int def(int varnode);
+
+        // the only op using `varnode`, -1 if there are none or several
+        int loneDescend(int varnode);
+
+        // `size` bytes of program memory at `address`, zero extended
+        long readMemory(long address, int size) throws Exception;
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////////// DeflatCore //////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * DeflatCore: Recovery of a flattened control flow on a FlowGraph, without anything from Ghidra.
+ * LocalStateVarDeflatter runs it on a snapshot of the decompiled function and patches the result, CoreBenchmark runs
+ * it on generated graphs.
+ */
+    static class DeflatCore {
+        private final FlowGraph graph;
+        // size of state variable, 4 or 8
+        private final int var_size;
+        // budget of data flow tree
+        private final int dft_max_nodes;
+        private final int dft_max_depth;
+
+        public DeflatCore(FlowGraph graph, int var_size, int dft_max_nodes, int dft_max_depth) {
+            this.graph = graph;
+            this.var_size = var_size;
+            this.dft_max_nodes = dft_max_nodes;
+            this.dft_max_depth = dft_max_depth;
+        }
+
+        // Get the varnode of state variable through the address of the instruction initializing it, -1 if there is
+        // no initialization there.
+        public int stateVarNode(long init_address) throws Exception {
+            FlowGraph g = this.graph;
+            int op = -1;
+            for (int i = 0; i < g.opCount(); i++) {
+                // we regard COPY a Constant as the initialization of the state variable
+                if (g.opAddress(i) == init_address && g.opcode(i) == PcodeOp.COPY && g.isConstant(g.input(i, 0)))
+                    op = i;
+            }
+
+            // We need to trace the output of the p-code we found above, until we meet a MULTIEQUAL p-code,
+            // the output of MULTIEQUAL p-code is the VarNode of our state variable we want to find.
+            while (op != -1 && g.opcode(op) != PcodeOp.MULTIEQUAL) {
+                if (g.output(op) == -1)
+                    throw new Exception(String.format("No output found in p-code op at %#x", g.opAddress(op)));
+                op = g.loneDescend(g.output(op));
+                if (op == -1)
+                    throw new Exception("ERROR: Failed to find lone descendant for P-code");
             }
-            return ret.toArray(new ConditionBlock[0]);
+            return op == -1 ? -1 : g.output(op);
         }
 
+        // Walk all basic blocks once and label them, see BlockClassification.
+        public BlockClassification classifyBlocks(int target) {
+            FlowGraph g = this.graph;
+            BlockClassification ret = new BlockClassification(g.blockCount());
+            for (int block = 0; block < g.blockCount(); block++) {
+                // A single instruction block of CMOVxx, it selects the next value of state var
+                if (g.isCmovSelector(block))
+                    ret.flags[block] |= BlockClassification.CMOV_SELECTOR;
+
+                // COPY a value into a varnode merged by MULTIEQUAL, it's where state var may be assigned
+                for (int op = g.firstOp(block); op < g.firstOp(block) + g.opCount(block); op++) {
+                    int output = g.output(op);
+                    if (g.opcode(op) != PcodeOp.COPY || output == -1 || g.size(output) != this.var_size)
+                        continue;
+                    if (!g.isConstant(g.input(op, 0)) && !g.isAddress(g.input(op, 0)))
+                        continue;
+                    int descend = g.loneDescend(output);
+                    if (descend != -1 && g.opcode(descend) == PcodeOp.MULTIEQUAL) {
+                        ret.flags[block] |= BlockClassification.STATE_DEFINITION;
+                        break;
+                    }
+                }
+
+                // Only CBRANCH has 2 output, we discard blocks without CBRANCH as its end
+                if (g.outSize(block) != 2 || g.opCount(block) == 0)
+                    continue;
+                int block_end = g.firstOp(block) + g.opCount(block) - 1;
+                if (g.opcode(block_end) != PcodeOp.CBRANCH)
+                    continue;
 
-        DefBlock buildDispatcherDFT(HighFunction hFunction, PcodeOp multiEqual, int recursive_depth,
-                                    DefBlock child) throws Exception {
-            DefBlock root = new DefBlock(0, multiEqual.getParent(), child);
+                // CBRANCH has 2 inputs, [0] is jump target, [1] is condition
+                int condition_def = g.def(g.input(block_end, 1));
+                if (condition_def == -1 || !(g.opcode(condition_def) == PcodeOp.INT_EQUAL ||
+                        g.opcode(condition_def) == PcodeOp.INT_NOTEQUAL))
+                    continue;
 
-            Vector<DefBlock> ret = new Vector<>();
-            // All the inputs except itself regarded as data flow sources (parents)
-            Varnode[] inputs = multiEqual.getInputs();
-            // All inputs
-            for(Varnode input: inputs) {
-                if(input == multiEqual.getOutput())
+                int constant;
+                int in0 = g.input(condition_def, 0), in1 = g.input(condition_def, 1);
+                if (g.isConstant(in0) && in1 == target)
+                    constant = in0;
+                else if (g.isConstant(in1) && in0 == target)
+                    constant = in1;
+                else
                     continue;
-                PcodeOp source_op = input.getDef();
-                // input Opcode == COPY ?
-                if(source_op.getOpcode() == PcodeOp.COPY){
-                    // input VarNode == Constant ?
-                    if(source_op.getInput(0).isConstant()){
-                        ret.add(new DefBlock(source_op.getInput(0).getOffset(), source_op.getParent(), root));
-                    } else if (source_op.getInput(0).getAddress().getAddressSpace().getName().equals("ram")) {
-                        if (source_op.getInput(0).isAddress()) {
-                            if (this.var_size == 4) {
-                                int ram_val = mem.getInt(source_op.getInput(0).getAddress());
-                                ret.add(new DefBlock(ram_val, source_op.getParent(), root));
-                            } else if (this.var_size == 8) {
-                                long ram_val = mem.getLong(source_op.getInput(0).getAddress());
-                                ret.add(new DefBlock(ram_val, source_op.getParent(), root));
-                            } else {
-                                throw new Exception("Invalid dispatcher size");
-                            }
-                        } else {
-                            // may be registers
-                            throw new Exception("Non-const value for dispatcher found, cannot recover");
+
+                ret.flags[block] |= BlockClassification.DISPATCHER_COMPARE;
+                ret.constants[block] = g.offset(constant);
+                ret.compare_conditions[block] = g.opcode(condition_def);
+                ret.targets[block] = g.opcode(condition_def) == PcodeOp.INT_EQUAL ? g.trueOut(block) :
+                        g.falseOut(block);
+            }
+            return ret;
+        }
+
+        // Get all blocks that use state variable as conditions
+        public ConditionIndex findRealBlockRelations(BlockClassification classes) {
+            FlowGraph g = this.graph;
+            int count = 0;
+            for (int i = 0; i < classes.size(); i++)
+                if (classes.is(i, BlockClassification.DISPATCHER_COMPARE))
+                    count++;
+            long[] constants = new long[count];
+            int[] targets = new int[count];
+            int[] conditions = new int[count];
+            long[] target_starts = new long[count];
+            long[] target_stops = new long[count];
+            for (int i = 0, j = 0; i < classes.size(); i++) {
+                if (!classes.is(i, BlockClassification.DISPATCHER_COMPARE))
+                    continue;
+                constants[j] = classes.constants[i];
+                targets[j] = classes.targets[i];
+                conditions[j] = classes.compare_conditions[i];
+                target_starts[j] = g.blockStart(targets[j]);
+                target_stops[j] = g.blockStop(targets[j]);
+                j++;
+            }
+            return new ConditionIndex(constants, targets, conditions, target_starts, target_stops);
+        }
+
+        // Get all blocks that change the value of state variable.
+        //
+        // All the inputs of a MULTIEQUAL (except itself) are regarded as data flow sources (parents). Every p-code op
+        // gets only one node, so phi chains shared by several MULTIEQUALs are built once and the result is a DAG
+        // (with loops it may even have cycles). The graph is built with a work list to not overflow the stack on deep
+        // chains.
+        public DispatcherDFT buildDispatcherDFT(BlockClassification classes, int multiEqual) throws Exception {
+            FlowGraph g = this.graph;
+            DispatcherDFT dft = new DispatcherDFT(g.opBlock(multiEqual), classes.size());
+            // p-code op -> its only node (-1 if not built yet), and depth of the inner ones
+            int[] built = new int[g.opCount()];
+            Arrays.fill(built, -1);
+            int[] depths = new int[g.opCount()];
+            int[] worklist = new int[16];
+            int top = 0;
+            built[multiEqual] = DispatcherDFT.ROOT;
+            depths[multiEqual] = 1;
+            worklist[top++] = multiEqual;
+
+            while (top > 0) {
+                int op = worklist[--top];
+                int node = built[op];
+                int depth = depths[op];
+                for (int i = 0; i < g.inputCount(op); i++) {
+                    int input = g.input(op, i);
+                    if (input == g.output(op))
+                        continue;
+                    int source_op = g.def(input);
+                    if (source_op == -1)
+                        throw new Exception(String.format(
+                                "No definition found for input %d of p-code op at %#x, cannot recover", i,
+                                g.opAddress(op)));
+                    int parent = built[source_op];
+                    if (parent == -1) {
+                        parent = this.newDefNode(dft, source_op, node);
+                        built[source_op] = parent;
+                        if (dft.size() > this.dft_max_nodes)
+                            throw new Exception(String.format(
+                                    "Data flow tree has more than %d nodes, give up", this.dft_max_nodes));
+                        if (dft.isInner(parent)) {
+                            if (depth + 1 > this.dft_max_depth)
+                                throw new Exception(String.format(
+                                        "Data flow tree is deeper than %d, give up", this.dft_max_depth));
+                            depths[source_op] = depth + 1;
+                            if (top == worklist.length)
+                                worklist = Arrays.copyOf(worklist, top * 2);
+                            worklist[top++] = source_op;
                         }
-                    } else {
-                        // build DFT recursively
-                        ret.add(this.buildDispatcherDFT(hFunction, source_op, recursive_depth + 1, root));
                     }
-                } else if (source_op.getOpcode() == PcodeOp.MULTIEQUAL) {
-                    // analyse MULTIEQUAL recursively
-                    for (Varnode ignored : source_op.getInputs()) {
-                        ret.add(this.buildDispatcherDFT(hFunction, source_op, recursive_depth + 1, root));
-                    }
-                } else {
-                    throw new Exception("Unsupported pcode for tracing data flow tree");
+                    dft.addParent(node, parent);
                 }
             }
 
-            root.parents = ret;
-            if(root.parents.size() == 1)
-                root.constant = root.parents.get(0).constant;
-            return root;
+            dft.resolveChains();
+            return dft;
         }
 
-        // Get all blocks that change the value of state variable
-        DefBlock buildDispatcherDFT(HighFunction hFunction, PcodeOp multiEqual) throws Exception {
-            return this.buildDispatcherDFT(hFunction, multiEqual, 1, null);
+        // Add the node of `source_op` to `dft`, a leaf if the value it gives is known, otherwise an inner node whose
+        // parents are still to be found.
+        private int newDefNode(DispatcherDFT dft, int source_op, int child) throws Exception {
+            FlowGraph g = this.graph;
+            int block = g.opBlock(source_op);
+            // input Opcode == COPY ?
+            if (g.opcode(source_op) == PcodeOp.COPY) {
+                int input = g.input(source_op, 0);
+                // input VarNode == Constant ?
+                if (g.isConstant(input))
+                    return dft.add(block, g.offset(input), child, false);
+                // a global var, its value in memory, zero extended like the constants compared by the dispatcher
+                if (g.isAddress(input))
+                    return dft.add(block, g.readMemory(g.offset(input), this.var_size), child, false);
+            } else if (g.opcode(source_op) != PcodeOp.MULTIEQUAL) {
+                throw new Exception("Unsupported pcode for tracing data flow tree");
+            }
+            // COPY from another varnode or MULTIEQUAL, trace its inputs later
+            return dft.add(block, 0, child, true);
         }
 
-        ControlFlowMap[] recoverExecFlow(ConditionBlock[] relations, DefBlock dft) throws Exception {
-            Vector<ControlFlowMap> ret = new Vector<>();
-
-            // DefBlock[] ancestors = dft.getAncestors();    // src, dst
-            DefBlock[] ancestors = dft.parents.toArray(new DefBlock[0]);
-            for(DefBlock defBlock : ancestors) {
-                PcodeBlockBasic block = defBlock.block;
+        // Get the real control flow, a map for every block going to one real block or choosing between two.
+        public ControlFlowMaps recoverExecFlow(BlockClassification classes, ConditionIndex relations, DispatcherDFT dft)
+                throws Exception {
+            FlowGraph g = this.graph;
+            // every block giving state var a known value, also the ones behind nested MULTIEQUALs
+            int[] leaves = dft.leaves();
+            ControlFlowMaps ret = new ControlFlowMaps(leaves.length);
+
+            for (int leaf: leaves) {
+                int block = dft.block(leaf);
+                long constant = dft.constant(leaf);
                 // JMP without conditions
                 // Just mark the condition block after definition block
-                if (block.getOutSize() == 1) {
-                    PcodeBlockBasic conditionBlock = findConditionBlock(relations, defBlock.constant);
-                    if(conditionBlock == null)
+                if (g.outSize(block) == 1) {
+                    int conditionBlock = relations.find(constant);
+                    if (conditionBlock == -1)
                         throw new Exception(
-                                String.format("Failed to find any block using constant %#x", defBlock.constant));
+                                String.format("Failed to find any block using constant %#x", constant));
                     // We need to skip all lone descend for CMOVxx
-                    if(block.getStart().getOffset() == block.getStop().getOffset() &&
-                            this.program.getListing()
-                                    .getInstructions(block.getStart(), true).next().getMnemonicString()
-                                    .startsWith("CMOV"))
+                    if (classes.is(block, BlockClassification.CMOV_SELECTOR))
                         continue;
-                    ret.add(new ControlFlowMap(block, conditionBlock));
+                    ret.add(g, block, conditionBlock, -1);
 
-                } else if (block.getOutSize() == 2) {
-                    PcodeBlockBasic trueLinker, falseLinker;
-                    long trueConst, falseConst;
+                } else if (g.outSize(block) == 2) {
                     // JMP with conditions
                     // There are 2 descend blocks, true or false
-                    PcodeBlockBasic trueDesc = (PcodeBlockBasic) block.getTrueOut(),
-                            falseDesc = (PcodeBlockBasic) block.getFalseOut();
-                    DefBlock tdd = findDefBlock(dft, trueDesc);
+                    int tdd = dft.find(g.trueOut(block));
                     // If there is a definition of state var in true descendant
                     // Treat trueDesc's definition as true branch
-                    trueConst = Objects.requireNonNullElse(tdd, defBlock).constant;
-                    trueLinker = findConditionBlock(relations, trueConst);
-                    if (trueLinker == null) {
+                    long trueConst = tdd == -1 ? constant : dft.constant(tdd);
+                    int trueLinker = relations.find(trueConst);
+                    if (trueLinker == -1) {
                         throw new Exception(String.format(
                                 "Failed to find descendant for condition TRUE:\n" +
-                                        "Block: %#x - %#x",
-                                block.getStart().getOffset(), block.getStop().getOffset())
-                        );
+                                        "Block: %#x - %#x", g.blockStart(block), g.blockStop(block)));
                     }
 
-                    DefBlock fdd = findDefBlock(dft, falseDesc);
-                    falseConst = Objects.requireNonNullElse(fdd, defBlock).constant;
-                    falseLinker = findConditionBlock(relations, falseConst);
-                    // If there is a definition of state var in true descendant
-                    // Treat trueDesc's definition as true branch
-                    if(falseLinker == null) {
+                    int fdd = dft.find(g.falseOut(block));
+                    long falseConst = fdd == -1 ? constant : dft.constant(fdd);
+                    int falseLinker = relations.find(falseConst);
+                    if (falseLinker == -1) {
                         throw new Exception(String.format(
                                 "Failed to find descendant for condition FALSE:\n" +
-                                        "Block: %#x - %#x",
-                                block.getStart().getOffset(), block.getStop().getOffset())
-                        );
+                                        "Block: %#x - %#x", g.blockStart(block), g.blockStop(block)));
                     }
 
                     // 2 branch must have different state variable values
-                    if (trueConst == falseConst && falseConst == defBlock.constant) {
+                    if (trueConst == falseConst && falseConst == constant) {
                         throw new Exception(String.format(
                                 "Condition block cannot have 2 descendant without changing state var.\n" +
                                         "Block: %#x - %#x, True: %#x - %#x, False: %#x - %#x",
-                                block.getStart().getOffset(), block.getStop().getOffset(),
-                                trueLinker.getStart().getOffset(), trueLinker.getStop().getOffset(),
-                                falseLinker.getStart().getOffset(), falseLinker.getStop().getOffset()
-                        ));
+                                g.blockStart(block), g.blockStop(block), g.blockStart(trueLinker),
+                                g.blockStop(trueLinker), g.blockStart(falseLinker), g.blockStop(falseLinker)));
                     }
 
-                    ret.add(new ControlFlowMap(block, trueLinker, falseLinker));
+                    ret.add(g, block, trueLinker, falseLinker);
 
                 } else {
-                    throw new Exception(String.format(
-                            "Unsupported block for %d outputs", block.getOutSize()
-                    ));
+                    throw new Exception(String.format("Unsupported block for %d outputs", g.outSize(block)));
                 }
             }
-            return ret.toArray(new ControlFlowMap[0]);
+            return ret;
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+///////////////////////////////////////////////// BlockClassification //////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * BlockClassification: Labels of all basic blocks of a function for a state variable, indexed by block index.
+ * A block without any label is a real block. Comparisons of the dispatcher also keep the constant compared and the
+ * block jumped to when state var equals it.
+ */
+    static class BlockClassification {
+        // CBRANCH on state var == / != constant
+        public static final int DISPATCHER_COMPARE = 1;
+        // COPY a constant or a memory value into the MULTIEQUAL chain of state var
+        public static final int STATE_DEFINITION = 2;
+        // a single CMOVxx instruction choosing the next state
+        public static final int CMOV_SELECTOR = 4;
+
+        public final int[] flags;
+        public final long[] constants;
+        public final int[] compare_conditions;
+        public final int[] targets;
+
+        public BlockClassification(int block_count) {
+            this.flags = new int[block_count];
+            this.constants = new long[block_count];
+            this.compare_conditions = new int[block_count];
+            this.targets = new int[block_count];
         }
 
-        PcodeBlockBasic findConditionBlock(ConditionBlock[] relations, long constant) {
-            for(ConditionBlock relation: relations) {
-                if(relation.constant == constant)
-                    return relation.target;
-            }
-            return null;
+        public int size() {
+            return this.flags.length;
         }
 
-        DefBlock findDefBlock(DefBlock root, PcodeBlockBasic block) {
-            if(root.block.equals(block) && root.child != null)
-                return root;
-            else if(root.block.equals(block) && root.child == null) { // wouldn't return real root
-                return null;
-            }
-            if(root.parents == null) {
-                return null;
-            }
-            for(DefBlock d: root.parents) {
-                DefBlock find = findDefBlock(d, block);
-                if(find != null)
-                    return find;
-            }
-            return null;
+        public boolean is(int index, int flag) {
+            return (this.flags[index] & flag) != 0;
         }
 
-        void recoverCFG(ControlFlowMap[] cfg) throws Exception {
-            String arch = this.program.getLanguage().getProcessor().toString();
-            if(arch.equals("x86"))
-                this.recoverCFGx86(cfg);
+        public boolean isRealBlock(int index) {
+            return this.flags[index] == 0;
         }
 
-        void recoverCFGx86(ControlFlowMap[] cfg) throws Exception {
-            CFGPatcherX86 patcher = new CFGPatcherX86(this.program, cfg);
-            patcher.patchAll();
+        @Override
+        public String toString() {
+            int compares = 0, definitions = 0, selectors = 0, real = 0;
+            for (int i = 0; i < this.size(); i++) {
+                if (this.is(i, DISPATCHER_COMPARE))
+                    compares++;
+                if (this.is(i, STATE_DEFINITION))
+                    definitions++;
+                if (this.is(i, CMOV_SELECTOR))
+                    selectors++;
+                if (this.isRealBlock(i))
+                    real++;
+            }
+            return String.format("%d blocks: %d dispatcher comparisons, %d state definitions, %d CMOV selectors, " +
+                    "%d real blocks", this.size(), compares, definitions, selectors, real);
         }
     }
 
@@ -635,131 +2373,474 @@ public class OllvmSolver extends GhidraScript {
 /////////////////////////////////////////////////// ConditionBlock /////////////////////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    class ConditionBlock {
-        public long constant;
-        public PcodeBlockBasic target;
-        public int compare_condition;
-        public boolean linked;
+    // one relation of a ConditionIndex, only created for printing
+    static class ConditionBlock {
+        public final long constant;
+        // index of target block, with its first and last instruction address
+        public final int target;
+        public final long target_start;
+        public final long target_stop;
+        public final int compare_condition;
 
-        public ConditionBlock(long constant, PcodeBlockBasic target, int condition) {
+        public ConditionBlock(long constant, int target, long target_start, long target_stop, int condition) {
             this.constant = constant;
             this.target = target;
+            this.target_start = target_start;
+            this.target_stop = target_stop;
             this.compare_condition = condition;
-            linked = false;
         }
 
         @Override
         public String toString() {
             return String.format(
-                    "when state var = %#x, jump to %#x - %#x", this.constant, this.target.getStart().getOffset(),
-                    this.target.getStop().getOffset()
+                    "when state var = %#x, jump to %#x - %#x", this.constant, this.target_start, this.target_stop
             );
         }
     }
 
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-/////////////////////////////////////////////////////// DefBlock ///////////////////////////////////////////////////////
+/////////////////////////////////////////////////// ConditionIndex /////////////////////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    class DefBlock {
-        public PcodeBlockBasic block;
-        public long constant;
-        public DefBlock child;
-        public Vector<DefBlock> parents;
-
-        public DefBlock(long constant, PcodeBlockBasic block) {
-            this.constant = constant;
-            this.block = block;
-            this.child = null;
-            this.parents = null;
+/**
+ * ConditionIndex: State variable value -> target block, built once from all comparisons of a dispatcher.
+ * Relations are kept in parallel arrays, the i-th compares state var with constants[i] and jumps to targets[i]. The
+ * lookup is an open addressing hash table with linear probing over primitive longs, so it never boxes.
+ */
+    static class ConditionIndex {
+        public final long[] constants;
+        // index of target block, with its first and last instruction address
+        public final int[] targets;
+        public final long[] target_starts;
+        public final long[] target_stops;
+        public final int[] compare_conditions;
+        // duplicated or conflicting constants found while building
+        public final Vector<String> problems;
+
+        private final long[] keys;
+        // index into relations plus 1, 0 means empty slot
+        private final int[] slots;
+        // slots whose constant is compared in several blocks jumping to different targets
+        private final BitSet conflicts;
+        private final int mask;
+
+        public ConditionIndex(long[] constants, int[] targets, int[] compare_conditions, long[] target_starts,
+                              long[] target_stops) {
+            this.constants = constants;
+            this.targets = targets;
+            this.compare_conditions = compare_conditions;
+            this.target_starts = target_starts;
+            this.target_stops = target_stops;
+            this.problems = new Vector<>();
+            int capacity = 4;
+            while (capacity < constants.length * 2)
+                capacity <<= 1;
+            this.keys = new long[capacity];
+            this.slots = new int[capacity];
+            this.conflicts = new BitSet(capacity);
+            this.mask = capacity - 1;
+
+            for (int i = 0; i < constants.length; i++) {
+                int slot = this.probe(constants[i]);
+                if (this.slots[slot] == 0) {
+                    this.keys[slot] = constants[i];
+                    this.slots[slot] = i + 1;
+                    continue;
+                }
+                int first = this.slots[slot] - 1;
+                if (targets[first] == targets[i]) {
+                    this.problems.add(String.format("state var value %#x is compared more than once, target %#x",
+                            constants[first], target_starts[first]));
+                } else {
+                    this.conflicts.set(slot);
+                    this.problems.add(String.format(
+                            "state var value %#x leads to different blocks: %#x and %#x", constants[first],
+                            target_starts[first], target_starts[i]));
+                }
+            }
         }
 
-        public DefBlock(long constant, PcodeBlockBasic block, DefBlock child) {
-            this.constant = constant;
-            this.block = block;
-            this.child = child;
-            this.parents = null;
+        // number of relations
+        public int size() {
+            return this.constants.length;
         }
 
-        public DefBlock[] getAncestors() throws Exception {
-            Vector<DefBlock> ret = new Vector<>();
-            for(DefBlock d: this.parents) {
-                if(d.parents != null) {
-                    if(!ret.addAll(List.of(d.getAncestors())))
-                        throw new Exception("Failed to merge ancestors");
-                } else {
-                    ret.add(d);
-                }
-            }
-            return ret.toArray(new DefBlock[0]);
+        public ConditionBlock relation(int i) {
+            return new ConditionBlock(this.constants[i], this.targets[i], this.target_starts[i], this.target_stops[i],
+                    this.compare_conditions[i]);
         }
 
-        @Override
-        public String toString() {
-            return this.toString(0);
+        // slot holding `constant`, or the empty slot where it should be
+        private int probe(long constant) {
+            long hash = constant * 0x9e3779b97f4a7c15L;
+            int slot = (int) (hash ^ (hash >>> 32)) & this.mask;
+            while (this.slots[slot] != 0 && this.keys[slot] != constant)
+                slot = (slot + 1) & this.mask;
+            return slot;
         }
 
-        private String toString(int tab) {
-            StringBuilder builder = new StringBuilder("\t".repeat(Math.max(0, tab)) + this.selfToString());
-            if (this.parents != null) {
-                for(DefBlock t: parents) {
-                    builder.append(t.toString(tab + 1));
-                }
-            }
-            return builder.toString();
+        public boolean contains(long constant) {
+            return this.slots[this.probe(constant)] != 0;
         }
 
-        public String selfToString() {
-            return String.format("Block %#x to %#x, value %#x\n",
-                    this.block.getStart().getOffset(), this.block.getStop().getOffset(), this.constant);
+        // Get the block which the dispatcher jumps to when state var equals `constant`, -1 if there is no such one.
+        public int find(long constant) throws Exception {
+            int slot = this.probe(constant);
+            if (this.slots[slot] == 0)
+                return -1;
+            if (this.conflicts.get(slot))
+                throw new Exception(String.format(
+                        "Ambiguous state var value %#x, it leads to more than one block", constant));
+            return this.targets[this.slots[slot] - 1];
         }
     }
 
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-//////////////////////////////////////////////////// ControlFlowMap ////////////////////////////////////////////////////
+/////////////////////////////////////////////////////// DefBlock ///////////////////////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    class ControlFlowMap {
-        public PcodeBlockBasic target;
-        public PcodeBlockBasic trueDescend;
-        public PcodeBlockBasic falseDescend;
-
-        public ControlFlowMap(PcodeBlockBasic target, PcodeBlockBasic loneDescend) {
-            this.target = target;
-            this.trueDescend = loneDescend;
-            this.falseDescend = null;
-        }
+    // a node of DispatcherDFT with the nodes it comes from, only created for printing
+    static class DefBlock {
+        private final FlowGraph graph;
+        private final DispatcherDFT dft;
+        private final int node;
 
-        public ControlFlowMap(PcodeBlockBasic target, PcodeBlockBasic trueDescend, PcodeBlockBasic falseDescend) {
-            this.target = target;
-            this.trueDescend = trueDescend;
-            this.falseDescend = falseDescend;
+        public DefBlock(FlowGraph graph, DispatcherDFT dft, int node) {
+            this.graph = graph;
+            this.dft = dft;
+            this.node = node;
         }
 
         @Override
         public String toString() {
-            if(falseDescend == null) {
-                return String.format(
-                        "block: %#x to %#x\n\tLone descend: %#x to %#x", target.getStart().getOffset(),
-                        target.getStop().getOffset(), trueDescend.getStart().getOffset(),
-                        trueDescend.getStop().getOffset()
-                );
-            } else {
-                return String.format(
-                        "block: %#x to %#x\n\tTrue descend: %#x to %#x\n\tFalse descend: %#x to %#x",
-                        target.getStart().getOffset(), target.getStop().getOffset(),
-                        trueDescend.getStart().getOffset(), trueDescend.getStop().getOffset(),
-                        falseDescend.getStart().getOffset(), falseDescend.getStop().getOffset()
-                );
-            }
+            StringBuilder builder = new StringBuilder();
+            this.toString(this.node, 0, builder, new BitSet(this.dft.size()));
+            return builder.toString();
         }
-    }
 
-////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-////////////////////////////////////////// LocalStateVarDeflatterDeserializer //////////////////////////////////////////
-////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+        // shared nodes are only expanded the first time they are printed
+        private void toString(int node, int tab, StringBuilder builder, BitSet printed) {
+            builder.append("\t".repeat(Math.max(0, tab))).append(String.format("Block %#x to %#x, value %#x\n",
+                    this.graph.blockStart(this.dft.block(node)), this.graph.blockStop(this.dft.block(node)),
+                    this.dft.constant(node)));
+            if (!this.dft.isInner(node) || printed.get(node))
+                return;
+            printed.set(node);
+            for (int parent: this.dft.parents(node))
+                this.toString(parent, tab + 1, builder, printed);
+        }
+    }
 
-    class LocalStateVarDeflatterDeserializer implements JsonDeserializer<LocalStateVarDeflatter> {
+/**
+ * DispatcherDFT: Data flow tree of a state variable. Nodes are numbered from ROOT in order of creation, each one is a
+ * block giving state var a value, and parents of a node are the nodes its value comes from. Everything is kept in
+ * parallel arrays, parents as linked lists of edges, with an index from basic block to the node in it, filled while
+ * the tree is being built.
+ */
+    static class DispatcherDFT {
+        // the MULTIEQUAL of state var in the dispatcher
+        public static final int ROOT = 0;
+
+        private int size;
+        private int[] blocks;
+        private long[] constants;
+        // the node which this one is first found as a source of, -1 for root. DFT is a DAG, other nodes may use this
+        // one as a parent too.
+        private int[] children;
+        // nodes whose value comes from their parents, COPY from another varnode or MULTIEQUAL
+        private final BitSet inner;
+        // first edge of parents of each node, -1 if none, and the last one to append to
+        private int[] first_parents;
+        private int[] last_parents;
+        private int[] parent_counts;
+        // edge -> parent node, and the next edge of the same node
+        private int edges;
+        private int[] parents;
+        private int[] next_parents;
+        // basic block index -> first node created in that block, -1 if none
+        private final int[] by_block;
+
+        public DispatcherDFT(int root_block, int block_count) {
+            this.blocks = new int[16];
+            this.constants = new long[16];
+            this.children = new int[16];
+            this.first_parents = new int[16];
+            this.last_parents = new int[16];
+            this.parent_counts = new int[16];
+            this.inner = new BitSet();
+            this.parents = new int[16];
+            this.next_parents = new int[16];
+            this.by_block = new int[block_count];
+            Arrays.fill(this.by_block, -1);
+            this.add(root_block, 0, -1, true);
+        }
+
+        // number of nodes, root included
+        public int size() {
+            return this.size;
+        }
+
+        public int block(int node) {
+            return this.blocks[node];
+        }
+
+        public long constant(int node) {
+            return this.constants[node];
+        }
+
+        public int child(int node) {
+            return this.children[node];
+        }
+
+        public boolean isInner(int node) {
+            return this.inner.get(node);
+        }
+
+        // Add a node and return its number.
+        int add(int block, long constant, int child, boolean inner) {
+            if (this.size == this.blocks.length) {
+                int capacity = this.size * 2;
+                this.blocks = Arrays.copyOf(this.blocks, capacity);
+                this.constants = Arrays.copyOf(this.constants, capacity);
+                this.children = Arrays.copyOf(this.children, capacity);
+                this.first_parents = Arrays.copyOf(this.first_parents, capacity);
+                this.last_parents = Arrays.copyOf(this.last_parents, capacity);
+                this.parent_counts = Arrays.copyOf(this.parent_counts, capacity);
+            }
+            int node = this.size++;
+            this.blocks[node] = block;
+            this.constants[node] = constant;
+            this.children[node] = child;
+            this.first_parents[node] = -1;
+            this.last_parents[node] = -1;
+            this.parent_counts[node] = 0;
+            if (inner)
+                this.inner.set(node);
+            if (node != ROOT && this.by_block[block] == -1)
+                this.by_block[block] = node;
+            return node;
+        }
+
+        void addParent(int node, int parent) {
+            if (this.edges == this.parents.length) {
+                this.parents = Arrays.copyOf(this.parents, this.edges * 2);
+                this.next_parents = Arrays.copyOf(this.next_parents, this.edges * 2);
+            }
+            int edge = this.edges++;
+            this.parents[edge] = parent;
+            this.next_parents[edge] = -1;
+            if (this.last_parents[node] == -1)
+                this.first_parents[node] = edge;
+            else
+                this.next_parents[this.last_parents[node]] = edge;
+            this.last_parents[node] = edge;
+            this.parent_counts[node]++;
+        }
+
+        // A node with only one parent takes its value, follow each such chain once.
+        void resolveChains() {
+            BitSet resolved = new BitSet(this.size);
+            int[] chain = new int[16];
+            for (int node = this.inner.nextSetBit(0); node >= 0; node = this.inner.nextSetBit(node + 1)) {
+                int length = 0;
+                int walk = node;
+                while (this.inner.get(walk) && this.parent_counts[walk] == 1 && !resolved.get(walk)) {
+                    resolved.set(walk);
+                    if (length == chain.length)
+                        chain = Arrays.copyOf(chain, length * 2);
+                    chain[length++] = walk;
+                    walk = this.parents[this.first_parents[walk]];
+                }
+                for (int i = 0; i < length; i++)
+                    this.constants[chain[i]] = this.constants[walk];
+            }
+        }
+
+        // parents of `node` in order of adding
+        public int[] parents(int node) {
+            int[] ret = new int[this.parent_counts[node]];
+            int i = 0;
+            for (int edge = this.first_parents[node]; edge != -1; edge = this.next_parents[edge])
+                ret[i++] = this.parents[edge];
+            return ret;
+        }
+
+        // All leaf nodes reachable from root, depth first, each of them only once.
+        public int[] leaves() {
+            int[] ret = new int[16];
+            int count = 0;
+            BitSet visited = new BitSet(this.size);
+            visited.set(ROOT);
+            // next edge to follow of each node on the path
+            int[] stack = new int[16];
+            int top = 0;
+            stack[top++] = this.first_parents[ROOT];
+            while (top > 0) {
+                int edge = stack[top - 1];
+                if (edge == -1) {
+                    top--;
+                    continue;
+                }
+                stack[top - 1] = this.next_parents[edge];
+                int node = this.parents[edge];
+                if (visited.get(node))
+                    continue;
+                visited.set(node);
+                if (!this.inner.get(node)) {
+                    if (count == ret.length)
+                        ret = Arrays.copyOf(ret, count * 2);
+                    ret[count++] = node;
+                    continue;
+                }
+                if (top == stack.length)
+                    stack = Arrays.copyOf(stack, top * 2);
+                stack[top++] = this.first_parents[node];
+            }
+            return Arrays.copyOf(ret, count);
+        }
+
+        // Get the node defining state variable in `block`, -1 if none. The root is never returned.
+        public int find(int block) {
+            if (block == this.blocks[ROOT])
+                return -1;
+            return block >= 0 && block < this.by_block.length ? this.by_block[block] : -1;
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+/////////////////////////////////////////////////// ControlFlowMaps ////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * ControlFlowMaps: Block ends to be redirected and where they go, one entry per block, kept in parallel arrays of
+ * offsets in default address space. Each entry has the first and last instruction of the block and of its true and
+ * false descends, false descend is -1 if the block has a lone descend. Only addresses of blocks are kept, so that maps
+ * can also be loaded from ResultStore without decompiling.
+ */
+    static class ControlFlowMaps {
+        private int size;
+        private long[] target_starts;
+        private long[] target_stops;
+        private long[] true_starts;
+        private long[] true_stops;
+        private long[] false_starts;
+        private long[] false_stops;
+
+        public ControlFlowMaps(int capacity) {
+            capacity = Math.max(1, capacity);
+            this.target_starts = new long[capacity];
+            this.target_stops = new long[capacity];
+            this.true_starts = new long[capacity];
+            this.true_stops = new long[capacity];
+            this.false_starts = new long[capacity];
+            this.false_stops = new long[capacity];
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        public long targetStart(int i) {
+            return this.target_starts[i];
+        }
+
+        public long targetStop(int i) {
+            return this.target_stops[i];
+        }
+
+        public long trueStart(int i) {
+            return this.true_starts[i];
+        }
+
+        public long trueStop(int i) {
+            return this.true_stops[i];
+        }
+
+        public long falseStart(int i) {
+            return this.false_starts[i];
+        }
+
+        public long falseStop(int i) {
+            return this.false_stops[i];
+        }
+
+        // a block choosing between 2 descends
+        public boolean isConditional(int i) {
+            return this.false_starts[i] != -1;
+        }
+
+        public void add(long target_start, long target_stop, long true_start, long true_stop, long false_start,
+                        long false_stop) {
+            if (this.size == this.target_starts.length) {
+                int capacity = this.size * 2;
+                this.target_starts = Arrays.copyOf(this.target_starts, capacity);
+                this.target_stops = Arrays.copyOf(this.target_stops, capacity);
+                this.true_starts = Arrays.copyOf(this.true_starts, capacity);
+                this.true_stops = Arrays.copyOf(this.true_stops, capacity);
+                this.false_starts = Arrays.copyOf(this.false_starts, capacity);
+                this.false_stops = Arrays.copyOf(this.false_stops, capacity);
+            }
+            int i = this.size++;
+            this.target_starts[i] = target_start;
+            this.target_stops[i] = target_stop;
+            this.true_starts[i] = true_start;
+            this.true_stops[i] = true_stop;
+            this.false_starts[i] = false_start;
+            this.false_stops[i] = false_stop;
+        }
+
+        // Add the map of `block` going to `true_block`, or choosing `false_block` too if it's not -1.
+        public void add(FlowGraph graph, int block, int true_block, int false_block) {
+            this.add(graph.blockStart(block), graph.blockStop(block), graph.blockStart(true_block),
+                    graph.blockStop(true_block), false_block == -1 ? -1 : graph.blockStart(false_block),
+                    false_block == -1 ? -1 : graph.blockStop(false_block));
+        }
+
+        // Add entry `i` of `other`.
+        public void add(ControlFlowMaps other, int i) {
+            this.add(other.target_starts[i], other.target_stops[i], other.true_starts[i], other.true_stops[i],
+                    other.false_starts[i], other.false_stops[i]);
+        }
+
+        public ControlFlowMap map(int i) {
+            return new ControlFlowMap(this, i);
+        }
+    }
+
+    // one entry of ControlFlowMaps, only created for printing
+    static class ControlFlowMap {
+        private final ControlFlowMaps maps;
+        private final int index;
+
+        public ControlFlowMap(ControlFlowMaps maps, int index) {
+            this.maps = maps;
+            this.index = index;
+        }
+
+        @Override
+        public String toString() {
+            ControlFlowMaps m = this.maps;
+            int i = this.index;
+            if(!m.isConditional(i)) {
+                return String.format(
+                        "block: %#x to %#x\n\tLone descend: %#x to %#x", m.targetStart(i), m.targetStop(i),
+                        m.trueStart(i), m.trueStop(i)
+                );
+            } else {
+                return String.format(
+                        "block: %#x to %#x\n\tTrue descend: %#x to %#x\n\tFalse descend: %#x to %#x",
+                        m.targetStart(i), m.targetStop(i), m.trueStart(i), m.trueStop(i), m.falseStart(i),
+                        m.falseStop(i)
+                );
+            }
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////// LocalStateVarDeflatterDeserializer //////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    class LocalStateVarDeflatterDeserializer implements JsonDeserializer<LocalStateVarDeflatter> {
 
         @Override
         public LocalStateVarDeflatter deserialize(JsonElement jsonElement, Type type,
@@ -800,6 +2881,191 @@ public class OllvmSolver extends GhidraScript {
         }
     }
 
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+/////////////////////////////////////////////////// StateVarDiscovery //////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * StateVarDiscovery: Find state variables of flattened functions, so that target_local_vars needn't be written by hand.
+ * Every function is first scanned on raw p-code of its instructions, which is cheap. A stack slot stored with several
+ * large constants that are also compared in the same function makes a candidate. Only candidates are decompiled, to
+ * check how many of these constants the dispatcher built on its MULTIEQUAL really compares with.
+ */
+    class StateVarDiscovery {
+        // fewest distinct state values, both stored and compared, for a slot to be a candidate
+        static final int MIN_STATES = 3;
+        // candidates confirmed below it are not written into config
+        static final double MIN_CONFIDENCE = 0.5;
+
+        // a stack slot of a function stored with state-like constants
+        class Candidate {
+            final Function function;
+            final int size;
+            // the first store into this slot, regarded as initialization of the state variable
+            final Address init_address;
+            final Set<Long> stored;
+            // constants both stored and compared
+            long[] states;
+            double confidence;
+
+            Candidate(Function function, int size, Address init_address) {
+                this.function = function;
+                this.size = size;
+                this.init_address = init_address;
+                this.stored = new HashSet<>();
+            }
+        }
+
+        private final OllvmSolver solverMain;
+        private final Program program;
+        private final SolverConfig config;
+
+        public StateVarDiscovery(OllvmSolver main, Program program, SolverConfig config) {
+            this.solverMain = main;
+            this.program = program;
+            this.config = config;
+        }
+
+        // Scan all functions and confirm candidates on the pool, ranked by confidence.
+        public Vector<Candidate> discover(DecompilerPool pool) throws Exception {
+            Vector<Function> functions = new Vector<>();
+            for (Function func: this.program.getFunctionManager().getFunctions(true)) {
+                if (func.isThunk() || func.isExternal())
+                    continue;
+                functions.add(func);
+            }
+            return this.discover(pool, functions);
+        }
+
+        // Scan `functions` only, like the ones just patched, and confirm their candidates.
+        public Vector<Candidate> discover(DecompilerPool pool, List<Function> functions) throws Exception {
+            Vector<Candidate> candidates = new Vector<>();
+            for (Function func: functions)
+                candidates.addAll(this.prefilter(func));
+            log.info("%d of %d functions have state variable candidates",
+                    candidates.stream().map(c -> c.function).distinct().count(), functions.size());
+
+            candidates.sort(Comparator.comparingLong((Candidate c) -> functionSize(c.function)).reversed());
+            Vector<Candidate> ret = new Vector<>();
+            pool.runAll(candidates,
+                    (candidate, decompiler) -> {
+                        LocalStateVarDeflatter deflatter = new LocalStateVarDeflatter(
+                                candidate.size, candidate.init_address.getOffset());
+                        deflatter.postInitialization(solverMain, program, config);
+                        return deflatter.confirm(decompiler, candidate.states);
+                    },
+                    (candidate, confidence, error) -> {
+                        if (error != null) {
+                            log.debug("Candidate %#x in %s rejected: %s", candidate.init_address.getOffset(),
+                                    candidate.function.getName(), error.getMessage());
+                            return;
+                        }
+                        candidate.confidence = confidence;
+                        log.log(confidence < MIN_CONFIDENCE ? SolverLog.INFO : SolverLog.DEBUG, null,
+                                "Candidate %#x in %s: %d states, confidence %.2f", candidate.init_address.getOffset(),
+                                candidate.function.getName(), candidate.states.length, confidence);
+                        if (confidence >= MIN_CONFIDENCE)
+                            ret.add(candidate);
+                    });
+            ret.sort(Comparator.comparingDouble((Candidate c) -> c.confidence).reversed());
+            return ret;
+        }
+
+        // Find stack slots of `func` stored with constants that are also compared, from raw p-code of instructions.
+        Vector<Candidate> prefilter(Function func) {
+            Map<String, Candidate> slots = new LinkedHashMap<>();
+            Set<Long> compared = new HashSet<>();
+            int branches = 0;
+            for (Instruction insn: this.program.getListing().getInstructions(func.getBody(), true)) {
+                PcodeOp[] ops = insn.getPcode();
+                // temporaries of this instruction holding register + displacement, unique offset -> [register, disp]
+                Map<Long, long[]> pointers = new HashMap<>();
+                for (PcodeOp op: ops) {
+                    switch (op.getOpcode()) {
+                        case PcodeOp.CBRANCH -> branches++;
+                        case PcodeOp.INT_ADD, PcodeOp.INT_SUB -> {
+                            Varnode base = op.getInput(0);
+                            Varnode disp = op.getInput(1);
+                            if (base.isRegister() && disp.isConstant() && op.getOutput().isUnique())
+                                pointers.put(op.getOutput().getOffset(), new long[] {base.getOffset(),
+                                        op.getOpcode() == PcodeOp.INT_ADD ? disp.getOffset() : -disp.getOffset()});
+                            if (disp.isConstant()) {
+                                // `x + c == 0` compares x with -c
+                                long value = op.getOpcode() == PcodeOp.INT_ADD ? -disp.getOffset() : disp.getOffset();
+                                if (stateLike(value, disp.getSize()))
+                                    compared.add(value & sizeMask(disp.getSize()));
+                            }
+                        }
+                        case PcodeOp.INT_EQUAL, PcodeOp.INT_NOTEQUAL, PcodeOp.INT_LESS, PcodeOp.INT_SLESS,
+                                PcodeOp.INT_SBORROW -> {
+                            for (Varnode input: op.getInputs())
+                                if (input.isConstant() && stateLike(input.getOffset(), input.getSize()))
+                                    compared.add(input.getOffset() & sizeMask(input.getSize()));
+                        }
+                        case PcodeOp.STORE -> {
+                            Varnode pointer = op.getInput(1);
+                            Varnode value = op.getInput(2);
+                            if (!value.isConstant() || (value.getSize() != 4 && value.getSize() != 8) ||
+                                    !stateLike(value.getOffset(), value.getSize()))
+                                break;
+                            long[] slot = pointer.isRegister() ? new long[] {pointer.getOffset(), 0} :
+                                    pointer.isUnique() ? pointers.get(pointer.getOffset()) : null;
+                            if (slot == null)
+                                break;
+                            String key = String.format("%x%+x:%d", slot[0], slot[1], value.getSize());
+                            slots.computeIfAbsent(key, k -> new Candidate(func, value.getSize(), insn.getAddress()))
+                                    .stored.add(value.getOffset() & sizeMask(value.getSize()));
+                        }
+                        default -> { }
+                    }
+                }
+            }
+
+            Vector<Candidate> ret = new Vector<>();
+            if (branches < MIN_STATES)
+                return ret;
+            for (Candidate candidate: slots.values()) {
+                candidate.states = candidate.stored.stream().filter(compared::contains)
+                        .mapToLong(Long::longValue).toArray();
+                if (candidate.states.length >= MIN_STATES)
+                    ret.add(candidate);
+            }
+            return ret;
+        }
+
+        static long sizeMask(int size) {
+            return size >= 8 ? -1L : (1L << (size * 8)) - 1;
+        }
+
+        // OLLVM draws state values at random, so they are neither small numbers nor small negative numbers
+        static boolean stateLike(long value, int size) {
+            long mask = sizeMask(size);
+            value &= mask;
+            return Long.compareUnsigned(value, 0xffff) > 0 && Long.compareUnsigned(value, mask - 0xffff) < 0;
+        }
+
+        // Write candidates as a config SolverConfig can read, with function name and confidence for user to check.
+        public void writeConfig(Vector<Candidate> candidates, File file) throws Exception {
+            JsonArray local_vars = new JsonArray();
+            for (Candidate candidate: candidates) {
+                JsonObject element = new JsonObject();
+                element.addProperty("var_size", candidate.size);
+                element.addProperty("var_init_address", Long.toHexString(candidate.init_address.getOffset()));
+                element.addProperty("function", candidate.function.getName());
+                element.addProperty("confidence", Math.round(candidate.confidence * 1000) / 1000.0);
+                local_vars.add(element);
+            }
+            JsonObject object = new JsonObject();
+            object.add("target_local_vars", local_vars);
+            object.addProperty("global_var_deobfuscation_mode", this.config.global_var_deobfuscation_mode);
+            object.add("functions_for_gvo", new JsonArray());
+            try (Writer out = new FileWriter(file)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(object, out);
+            }
+            log.info("%d state variables written into %s", candidates.size(), file.getPath());
+        }
+    }
+
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 ////////////////////////////////////////////////////// CFGPatcher //////////////////////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -807,123 +3073,2064 @@ public class OllvmSolver extends GhidraScript {
     class ASMPatcher {
         Program program;
         Assembler asm;
+        // machine code of a single NOP, assembled when first needed
+        private byte[] nop;
+        // patches whose code is given by the assembler, and the ones encoded directly
+        int assembled;
+        int encoded;
 
         ASMPatcher(Program program) {
             this.program = program;
             this.asm = Assemblers.getAssembler(this.program);
         }
 
+        // Assemble `mnemonic` at `addr` and pad the rest of the last instruction overwritten with NOP. Nothing is
+        // written into the program, the entry should be given to a PatchPlan.
         public PatchEntry patch(Address addr, String mnemonic) throws Exception {
-            InstructionIterator ii = this.asm.assemble(addr, mnemonic);
-            Vector<Byte> new_machine_code = new Vector<>();
-            for(Instruction i: ii) {
-                for(byte b: i.getBytes())
-                    new_machine_code.add(b);
-            }
-            byte[] out = new byte[new_machine_code.size()];
-            for(int i=0; i<new_machine_code.size(); i++)
-                out[i] = new_machine_code.get(i);
+            return this.patch(addr, this.assemble(addr, mnemonic));
+        }
+
+        // the same as above, but with machine code already encoded
+        public PatchEntry patch(Address addr, byte[] code) throws Exception {
+            int fill_len = this.paddingLength(addr, code.length);
+            byte[] out = Arrays.copyOf(code, code.length + fill_len);
+            this.fillNop(addr.add(code.length), out, code.length, fill_len);
 
             PatchEntry ret = new PatchEntry(addr, out);
-            if (DEBUG)
-                println(ret.toString());
+            log.trace("%s", ret);
+            if (fill_len != 0)
+                log.trace("Filled %s with nop, length %d", addr.add(code.length), fill_len);
+            return ret;
+        }
+
+        // assemble instructions (one each line) one after another from `addr`
+        public byte[] assemble(Address addr, String mnemonic) throws Exception {
+            this.assembled++;
+            byte[] ret = new byte[0];
+            for (String line: mnemonic.split("\n")) {
+                if (line.isBlank())
+                    continue;
+                byte[] code = this.asm.assembleLine(addr.add(ret.length), line);
+                byte[] merged = Arrays.copyOf(ret, ret.length + code.length);
+                System.arraycopy(code, 0, merged, ret.length, code.length);
+                ret = merged;
+            }
+            return ret;
+        }
+
+        // Bytes left of the last instruction overlapped by `length` bytes from `addr`, they would be an invalid
+        // instruction after patching.
+        public int paddingLength(Address addr, int length) {
+            if (length == 0)
+                return 0;
+            Address last = addr.add(length - 1);
+            Instruction inst = this.program.getListing().getInstructionContaining(last);
+            if (inst == null)
+                return 0;
+            return (int) inst.getMaxAddress().subtract(last);
+        }
+
+        // fill `size` bytes of `code` from `offset` with NOP, `addr` is where code[offset] will be written
+        public void fillNop(Address addr, byte[] code, int offset, int size) throws Exception {
+            if (size == 0)
+                return;
+            if (this.nop == null)
+                this.nop = this.asm.assembleLine(addr, "NOP");
+            if (size % this.nop.length != 0)
+                throw new Exception(String.format("Cannot fill %d bytes with %d-byte NOP", size, this.nop.length));
+            for (int i = 0; i < size; i += this.nop.length)
+                System.arraycopy(this.nop, 0, code, offset + i, this.nop.length);
+        }
+
+        // counters of patches built by this patcher and written by `plan`
+        void count(PatchEvent event, PatchPlan plan) {
+            event.patches = plan.entries.size();
+            event.patches_assembled = this.assembled;
+            event.patches_encoded = this.encoded;
+            event.bytes_written = plan.bytes_written;
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////////// PatchPlan ///////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * PatchPlan: All patches of a function, written together. Entries are checked not to overlap, contiguous ones are
+ * merged, and each range is written with one Memory.setBytes. Only the ranges written are cleared and disassembled
+ * again.
+ */
+    class PatchPlan {
+        Program program;
+        Vector<PatchEntry> entries;
+        // bytes written by apply
+        long bytes_written;
+
+        PatchPlan(Program program) {
+            this.program = program;
+            this.entries = new Vector<>();
+        }
+
+        public void add(PatchEntry entry) {
+            if (entry.to_patch.length != 0)
+                this.entries.add(entry);
+        }
+
+        public boolean isEmpty() {
+            return this.entries.isEmpty();
+        }
+
+        // Write all entries into program, and return the number of ranges written.
+        public int apply() throws Exception {
+            if (this.entries.isEmpty())
+                return 0;
+            Vector<PatchEntry> sorted = new Vector<>(this.entries);
+            sorted.sort(Comparator.comparing((PatchEntry e) -> e.address));
+
+            // merge contiguous entries into ranges
+            Vector<PatchEntry> ranges = new Vector<>();
+            Address start = sorted.get(0).address;
+            byte[] merged = sorted.get(0).to_patch;
+            for (int i = 1; i < sorted.size(); i++) {
+                PatchEntry entry = sorted.get(i);
+                long gap = entry.address.subtract(start) - merged.length;
+                if (gap < 0) {
+                    throw new Exception(String.format("Patch at %#x overlaps the one at %#x",
+                            entry.address.getOffset(), sorted.get(i - 1).address.getOffset()));
+                } else if (gap == 0) {
+                    byte[] grown = Arrays.copyOf(merged, merged.length + entry.to_patch.length);
+                    System.arraycopy(entry.to_patch, 0, grown, merged.length, entry.to_patch.length);
+                    merged = grown;
+                } else {
+                    ranges.add(new PatchEntry(start, merged));
+                    start = entry.address;
+                    merged = entry.to_patch;
+                }
+            }
+            ranges.add(new PatchEntry(start, merged));
+
+            Listing listing = this.program.getListing();
+            Memory mem = this.program.getMemory();
+            for (PatchEntry entry: sorted) {
+                entry.original = new byte[entry.to_patch.length];
+                if (mem.getBytes(entry.address, entry.original) != entry.original.length)
+                    throw new Exception(String.format("Failed to read original bytes at %#x",
+                            entry.address.getOffset()));
+            }
+
+            AddressSet touched = new AddressSet();
+            Vector<Address[]> cleared = new Vector<>();
+            for (PatchEntry range: ranges) {
+                Address end = range.address.add(range.to_patch.length - 1);
+                // instructions at both ends may stick out of the range, clear them as a whole
+                Instruction first = listing.getInstructionContaining(range.address);
+                Instruction last = listing.getInstructionContaining(end);
+                Address clear_start = first == null ? range.address : first.getMinAddress();
+                Address clear_end = last == null ? end : last.getMaxAddress();
+                cleared.add(new Address[] {clear_start, clear_end});
+                touched.add(clear_start, clear_end);
+            }
+
+            // references from cleared code go away with it, and come back from the new code
+            if (globalIndex != null)
+                globalIndex.update(touched, -1);
+            for (int i = 0; i < ranges.size(); i++) {
+                invalidateDecompiled(ranges.get(i).address);
+                listing.clearCodeUnits(cleared.get(i)[0], cleared.get(i)[1], false);
+                mem.setBytes(ranges.get(i).address, ranges.get(i).to_patch);
+                this.bytes_written += ranges.get(i).to_patch.length;
+            }
+
+            DisassembleCommand cmd = new DisassembleCommand(touched, touched, true);
+            if (!cmd.applyTo(this.program))
+                throw new Exception(String.format("Failed to disassemble patched code: %s", cmd.getStatusMsg()));
+            if (globalIndex != null)
+                globalIndex.update(touched, 1);
+            if (patchJournal != null)
+                for (PatchEntry entry: sorted)
+                    patchJournal.record(entry);
+            patchesApplied += this.entries.size();
+            log.debug("Applied %d patches in %d ranges", this.entries.size(), ranges.size());
+            return ranges.size();
+        }
+    }
+
+    abstract class CFGPatcher extends ASMPatcher {
+        // function patched, for SolverMetrics
+        Function function;
+        ControlFlowMaps cfg;
+        Listing listing;
+
+        CFGPatcher(Program program, Function function, ControlFlowMaps cfg) {
+            super(program);
+            this.function = function;
+            this.cfg = cfg;
+
+            this.listing = this.program.getListing();
+        }
+
+        abstract String GenUncondBlockEnd(long target_addr);
+        abstract String GenCondBlockEnd(Instruction ins, long true_addr, long false_addr);
+
+        // Encode block ends directly without the assembler, return null if the form is not supported, then
+        // GenUncondBlockEnd / GenCondBlockEnd will be assembled instead.
+        byte[] EncodeUncondBlockEnd(Address addr, long target_addr) {
+            return null;
+        }
+
+        byte[] EncodeCondBlockEnd(Instruction ins, long true_addr, long false_addr) {
+            return null;
+        }
+
+        // Build patches of all blocks first, then write them all at once.
+        public PatchEntry[] patchAll() throws Exception {
+            PatchEvent event = new PatchEvent();
+            event.start(this.function);
+            PatchPlan plan = new PatchPlan(this.program);
+            try {
+                for (int i = 0; i < this.cfg.size(); i++) {
+                    plan.add(this.patchOne(i));
+                }
+                plan.apply();
+            } finally {
+                this.count(event, plan);
+                metrics.commit(event);
+            }
+            return plan.entries.toArray(new PatchEntry[0]);
+        }
+
+        // Patch the end of block `map` in cfg.
+        PatchEntry patchOne(int map) throws Exception {
+            AddressSpace space = this.program.getAddressFactory().getDefaultAddressSpace();
+            Instruction to_patch = this.listing.getInstructions(space.getAddress(cfg.targetStop(map)), true).next();
+            String asm_str;
+            Address patch_address = to_patch.getMinAddress();
+            byte[] new_machine_code;
+            // Unconditional JUMP
+            if (!cfg.isConditional(map)) {
+                long target = cfg.trueStart(map);
+                asm_str = GenUncondBlockEnd(target);
+                new_machine_code = EncodeUncondBlockEnd(patch_address, target);
+                if (new_machine_code == null)
+                    new_machine_code = this.assemble(patch_address, asm_str);
+                else
+                    this.encoded++;
+                if(new_machine_code.length > to_patch.getLength()){
+                    throw new Exception(String.format(
+                            "Not enough space to patch \"%s\" in %#x", asm_str, patch_address.getOffset()
+                    ));
+                }
+            } else {
+                // Conditional JUMP
+                long true_desc = cfg.trueStart(map);
+                long false_desc = cfg.falseStart(map);
+                new_machine_code = EncodeCondBlockEnd(to_patch, true_desc, false_desc);
+                if (new_machine_code == null) {
+                    asm_str = GenCondBlockEnd(to_patch, true_desc, false_desc);
+                    if(asm_str == null) {
+                        throw new Exception("Failed to patch conditional jump.");
+                    }
+                    new_machine_code = this.assemble(patch_address, asm_str);
+                } else {
+                    this.encoded++;
+                }
+            }
+
+            PatchEntry ret = patch(patch_address, new_machine_code);
+            ret.source = cfg;
+            ret.source_map = map;
+            return ret;
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//////////////////////////////////////////////////// CFGPatcherX86 /////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    class CFGPatcherX86 extends CFGPatcher {
+        // null if branches of this program cannot be encoded directly (16-bit code)
+        private final BranchEncoderX86 encoder;
+
+        public CFGPatcherX86(Program program, Function function, ControlFlowMaps cfg) {
+            super(program, function, cfg);
+            this.encoder = program.getDefaultPointerSize() >= 4 ? new BranchEncoderX86() : null;
+        }
+
+        @Override
+        byte[] EncodeUncondBlockEnd(Address addr, long target_addr) {
+            if (this.encoder == null)
+                return null;
+            byte[] code = this.encoder.encodeJump(addr.getOffset(), target_addr);
+            return this.verified(addr, "JMP", code, GenUncondBlockEnd(target_addr));
+        }
 
-            fillInvalidWithNop(addr.add(new_machine_code.size()));
+        @Override
+        byte[] EncodeCondBlockEnd(Instruction ins, long true_addr, long false_addr) {
+            String ins_mne = ins.getMnemonicString();
+            if (this.encoder == null || !ins_mne.startsWith("CMOV"))
+                return null;
+            String jcc = ins_mne.replace("CMOV", "J");
+            Address addr = ins.getMinAddress();
+            byte[] cond = this.encoder.encodeJcc(jcc, addr.getOffset(), true_addr);
+            cond = this.verified(addr, jcc, cond, String.format("%s %#x", jcc, true_addr));
+            if (cond == null)
+                return null;
+            Address jmp_addr = addr.add(cond.length);
+            byte[] jmp = this.EncodeUncondBlockEnd(jmp_addr, false_addr);
+            if (jmp == null)
+                return null;
+            byte[] ret = Arrays.copyOf(cond, cond.length + jmp.length);
+            System.arraycopy(jmp, 0, ret, cond.length, jmp.length);
             return ret;
         }
 
-        public void fillInvalidWithNop(Address addr) throws Exception {
-            int fill_len = 0;
-            while (true) {
-                Instruction inst = program.getListing().getInstructionAt(addr);
-                if (inst == null)
-                    fillNop(addr, 1);
-                else {
-                    println(inst.toString());
-                    break;
+        // The first encoding of each form (mnemonic and length) is compared with what the assembler gives. A form
+        // that differs is never encoded directly again, null is returned to fall back to the assembler.
+        private byte[] verified(Address addr, String mnemonic, byte[] code, String asm_str) {
+            if (code == null)
+                return null;
+            String form = mnemonic + "/" + code.length;
+            if (mismatchedBranchForms.contains(form))
+                return null;
+            if (verifiedBranchForms.contains(form))
+                return code;
+            try {
+                byte[] expected = this.asm.assembleLine(addr, asm_str);
+                if (Arrays.equals(expected, code)) {
+                    verifiedBranchForms.add(form);
+                    return code;
+                }
+                log.warn("Encoded %s at %#x differs from assembler, use assembler for %s instead",
+                        asm_str, addr.getOffset(), form);
+            } catch (Exception e) {
+                log.warn("Failed to assemble %s at %#x for checking: %s", asm_str, addr.getOffset(),
+                        e.getMessage());
+            }
+            mismatchedBranchForms.add(form);
+            return null;
+        }
+
+        @Override
+        public String GenUncondBlockEnd(long target_addr) {
+            return String.format("JMP %#x", target_addr);
+        }
+
+        @Override
+        public String GenCondBlockEnd(Instruction ins, long true_addr, long false_addr) {
+            String ins_mne = ins.getMnemonicString();
+            if (ins_mne.startsWith("CMOV")){
+                return String.format("%s %#x\nJMP %#x\n", ins_mne.replace("CMOV", "J"),
+                        true_addr, false_addr);
+            }
+            return null;
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+/////////////////////////////////////////////////// BranchEncoderX86 ///////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * BranchEncoderX86: Table driven encoder of JMP and Jcc with relative targets, for 32-bit and 64-bit code.
+ * The short form (rel8) is chosen when the target is in range, otherwise the near form (rel32).
+ */
+    class BranchEncoderX86 {
+        // Jcc mnemonic -> condition code (the low 4 bits of opcode), including all aliases
+        private static final Map<String, Integer> CONDITION_CODES = new HashMap<>();
+
+        static {
+            String[][] aliases = {
+                    {"JO"}, {"JNO"}, {"JB", "JC", "JNAE"}, {"JAE", "JNB", "JNC"},
+                    {"JE", "JZ"}, {"JNE", "JNZ"}, {"JBE", "JNA"}, {"JA", "JNBE"},
+                    {"JS"}, {"JNS"}, {"JP", "JPE"}, {"JNP", "JPO"},
+                    {"JL", "JNGE"}, {"JGE", "JNL"}, {"JLE", "JNG"}, {"JG", "JNLE"},
+            };
+            for (int cc = 0; cc < aliases.length; cc++)
+                for (String mnemonic: aliases[cc])
+                    CONDITION_CODES.put(mnemonic, cc);
+        }
+
+        // JMP from `addr` to `target`
+        public byte[] encodeJump(long addr, long target) {
+            return this.encode(addr, target, new byte[]{(byte) 0xeb}, new byte[]{(byte) 0xe9});
+        }
+
+        // Jcc from `addr` to `target`, null if `mnemonic` is not a Jcc
+        public byte[] encodeJcc(String mnemonic, long addr, long target) {
+            Integer cc = CONDITION_CODES.get(mnemonic.toUpperCase());
+            if (cc == null)
+                return null;
+            return this.encode(addr, target, new byte[]{(byte) (0x70 + cc)}, new byte[]{0x0f, (byte) (0x80 + cc)});
+        }
+
+        // displacement is relative to the end of instruction
+        private byte[] encode(long addr, long target, byte[] short_opcode, byte[] near_opcode) {
+            long short_disp = target - (addr + short_opcode.length + 1);
+            if (short_disp >= Byte.MIN_VALUE && short_disp <= Byte.MAX_VALUE) {
+                byte[] ret = Arrays.copyOf(short_opcode, short_opcode.length + 1);
+                ret[short_opcode.length] = (byte) short_disp;
+                return ret;
+            }
+            long near_disp = target - (addr + near_opcode.length + 4);
+            if (near_disp < Integer.MIN_VALUE || near_disp > Integer.MAX_VALUE)
+                return null;
+            byte[] ret = Arrays.copyOf(near_opcode, near_opcode.length + 4);
+            for (int i = 0; i < 4; i++)
+                ret[near_opcode.length + i] = (byte) (near_disp >> (8 * i));
+            return ret;
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//////////////////////////////////////////////////// PcodeSnapshot /////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * PcodeSnapshot: Varnodes, ops, basic blocks and edges of a decompiled function in flat arrays, independent of Ghidra.
+ * It's written by capturePcode, or imported from a text dump of p-code, and loaded back by mapping the file, so that
+ * analysis can be re-run and tested offline. Varnodes, ops and blocks are referred to by index, -1 means none.
+ * As a FlowGraph it's what DeflatCore works on, memory can only be read from the one taken by capturePcode.
+ *
+ * File format ("OLP1", version 2, big endian):
+ *   magic, version, function entry (long), function name (string: unsigned short length and UTF-8)
+ *   space count, names (string)
+ *   varnode count, {space (byte), offset (long), size (int), def op (int)}
+ *   op count, {opcode (int), address (long), order (int), block (int), output (int), first input, input count}
+ *   input count, input varnodes (int)
+ *   block count, {start (long), stop (long), first op (int), op count (int), true out (int), false out (int),
+ *                 CMOV selector (byte)}
+ *   edge count, {from block (int), to block (int)}
+ */
+    static class PcodeSnapshot implements FlowGraph {
+        public static final int MAGIC = 0x4f4c5031;
+        public static final int VERSION = 2;
+        // names of opcodes, indexed by the numbers of PcodeOp, for text dumps
+        static final String[] OPCODE_NAMES = {null, "COPY", "LOAD", "STORE", "BRANCH", "CBRANCH", "BRANCHIND", "CALL",
+                "CALLIND", "CALLOTHER", "RETURN", "INT_EQUAL", "INT_NOTEQUAL", "INT_SLESS", "INT_SLESSEQUAL",
+                "INT_LESS", "INT_LESSEQUAL", "INT_ZEXT", "INT_SEXT", "INT_ADD", "INT_SUB", "INT_CARRY", "INT_SCARRY",
+                "INT_SBORROW", "INT_2COMP", "INT_NEGATE", "INT_XOR", "INT_AND", "INT_OR", "INT_LEFT", "INT_RIGHT",
+                "INT_SRIGHT", "INT_MULT", "INT_DIV", "INT_SDIV", "INT_REM", "INT_SREM", "BOOL_NEGATE", "BOOL_XOR",
+                "BOOL_AND", "BOOL_OR", "FLOAT_EQUAL", "FLOAT_NOTEQUAL", "FLOAT_LESS", "FLOAT_LESSEQUAL", null,
+                "FLOAT_NAN", "FLOAT_ADD", "FLOAT_DIV", "FLOAT_MULT", "FLOAT_SUB", "FLOAT_NEG", "FLOAT_ABS",
+                "FLOAT_SQRT", "INT2FLOAT", "FLOAT2FLOAT", "TRUNC", "CEIL", "FLOOR", "ROUND", "MULTIEQUAL", "INDIRECT",
+                "PIECE", "SUBPIECE", "CAST", "PTRADD", "PTRSUB", "SEGMENTOP", "CPOOLREF", "NEW", "INSERT", "EXTRACT",
+                "POPCOUNT", "LZCOUNT"};
+
+        public long entry;
+        public String name;
+        public String[] spaces;
+
+        public byte[] varnode_space;
+        public long[] varnode_offset;
+        public int[] varnode_size;
+        public int[] varnode_def;
+
+        public int[] op_code;
+        public long[] op_address;
+        public int[] op_order;
+        public int[] op_block;
+        public int[] op_output;
+        public int[] op_input_start;
+        public int[] op_input_count;
+        public int[] inputs;
+
+        public long[] block_start;
+        public long[] block_stop;
+        public int[] block_first_op;
+        public int[] block_op_count;
+        public int[] block_true_out;
+        public int[] block_false_out;
+        public boolean[] block_cmov;
+
+        public int[] edge_from;
+        public int[] edge_to;
+
+        // ops using each varnode, uses[use_start[v] .. use_start[v + 1]), built on load
+        public int[] use_start;
+        public int[] uses;
+        // number of edges from each block, built on load
+        public int[] block_out_size;
+        // index of "const" and "ram" in spaces, -1 if not there
+        private int const_space;
+        private int ram_space;
+
+        public int varnodeCount() {
+            return this.varnode_offset.length;
+        }
+
+        public int opCount() {
+            return this.op_code.length;
+        }
+
+        public int blockCount() {
+            return this.block_start.length;
+        }
+
+        public long blockStart(int block) {
+            return this.block_start[block];
+        }
+
+        public long blockStop(int block) {
+            return this.block_stop[block];
+        }
+
+        public int outSize(int block) {
+            return this.block_out_size[block];
+        }
+
+        public int trueOut(int block) {
+            return this.block_true_out[block];
+        }
+
+        public int falseOut(int block) {
+            return this.block_false_out[block];
+        }
+
+        public boolean isCmovSelector(int block) {
+            return this.block_cmov[block];
+        }
+
+        public int firstOp(int block) {
+            return this.block_first_op[block];
+        }
+
+        public int opCount(int block) {
+            return this.block_op_count[block];
+        }
+
+        public int opcode(int op) {
+            return this.op_code[op];
+        }
+
+        public long opAddress(int op) {
+            return this.op_address[op];
+        }
+
+        public int opBlock(int op) {
+            return this.op_block[op];
+        }
+
+        public int output(int op) {
+            return this.op_output[op];
+        }
+
+        public int inputCount(int op) {
+            return this.op_input_count[op];
+        }
+
+        public int input(int op, int i) {
+            return this.inputs[this.op_input_start[op] + i];
+        }
+
+        public boolean isConstant(int varnode) {
+            return this.varnode_space[varnode] == this.const_space;
+        }
+
+        public boolean isAddress(int varnode) {
+            return this.varnode_space[varnode] == this.ram_space;
+        }
+
+        public long offset(int varnode) {
+            return this.varnode_offset[varnode];
+        }
+
+        public int size(int varnode) {
+            return this.varnode_size[varnode];
+        }
+
+        public int def(int varnode) {
+            return this.varnode_def[varnode];
+        }
+
+        // the only op using `varnode`, -1 if there are none or several
+        public int loneDescend(int varnode) {
+            int start = this.use_start[varnode], end = this.use_start[varnode + 1];
+            if (start == end)
+                return -1;
+            for (int i = start + 1; i < end; i++)
+                if (this.uses[i] != this.uses[start])
+                    return -1;
+            return this.uses[start];
+        }
+
+        // last op of `block`, -1 if it's empty
+        public int lastOp(int block) {
+            return this.block_op_count[block] == 0 ? -1 : this.block_first_op[block] + this.block_op_count[block] - 1;
+        }
+
+        // there is no program behind a snapshot loaded from file
+        public long readMemory(long address, int size) throws Exception {
+            throw new Exception(String.format("Cannot read memory at %#x from p-code snapshot of %s", address,
+                    this.name));
+        }
+
+        void buildIndex() {
+            this.const_space = Arrays.asList(this.spaces).indexOf("const");
+            this.ram_space = Arrays.asList(this.spaces).indexOf("ram");
+            this.block_out_size = new int[this.blockCount()];
+            for (int from: this.edge_from)
+                this.block_out_size[from]++;
+            this.use_start = new int[this.varnodeCount() + 1];
+            for (int input: this.inputs)
+                this.use_start[input + 1]++;
+            for (int i = 0; i < this.varnodeCount(); i++)
+                this.use_start[i + 1] += this.use_start[i];
+            this.uses = new int[this.inputs.length];
+            // an op using a varnode twice appears twice
+            int[] filled = Arrays.copyOf(this.use_start, this.varnodeCount());
+            for (int op = 0; op < this.opCount(); op++)
+                for (int i = 0; i < this.op_input_count[op]; i++)
+                    this.uses[filled[this.input(op, i)]++] = op;
+        }
+
+        public void write(File file) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(this.entry);
+                writeString(out, this.name);
+                out.writeInt(this.spaces.length);
+                for (String space: this.spaces)
+                    writeString(out, space);
+                out.writeInt(this.varnodeCount());
+                for (int i = 0; i < this.varnodeCount(); i++) {
+                    out.writeByte(this.varnode_space[i]);
+                    out.writeLong(this.varnode_offset[i]);
+                    out.writeInt(this.varnode_size[i]);
+                    out.writeInt(this.varnode_def[i]);
+                }
+                out.writeInt(this.opCount());
+                for (int i = 0; i < this.opCount(); i++) {
+                    out.writeInt(this.op_code[i]);
+                    out.writeLong(this.op_address[i]);
+                    out.writeInt(this.op_order[i]);
+                    out.writeInt(this.op_block[i]);
+                    out.writeInt(this.op_output[i]);
+                    out.writeInt(this.op_input_start[i]);
+                    out.writeInt(this.op_input_count[i]);
+                }
+                out.writeInt(this.inputs.length);
+                for (int input: this.inputs)
+                    out.writeInt(input);
+                out.writeInt(this.blockCount());
+                for (int i = 0; i < this.blockCount(); i++) {
+                    out.writeLong(this.block_start[i]);
+                    out.writeLong(this.block_stop[i]);
+                    out.writeInt(this.block_first_op[i]);
+                    out.writeInt(this.block_op_count[i]);
+                    out.writeInt(this.block_true_out[i]);
+                    out.writeInt(this.block_false_out[i]);
+                    out.writeByte(this.block_cmov[i] ? 1 : 0);
+                }
+                out.writeInt(this.edge_from.length);
+                for (int i = 0; i < this.edge_from.length; i++) {
+                    out.writeInt(this.edge_from[i]);
+                    out.writeInt(this.edge_to[i]);
+                }
+            }
+        }
+
+        public static PcodeSnapshot load(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (in.getInt() != MAGIC || in.getInt() != VERSION)
+                    throw new IOException(String.format("%s is not a p-code snapshot of version %d", file, VERSION));
+                PcodeSnapshot ret = new PcodeSnapshot();
+                ret.entry = in.getLong();
+                ret.name = readString(in);
+                ret.spaces = new String[in.getInt()];
+                for (int i = 0; i < ret.spaces.length; i++)
+                    ret.spaces[i] = readString(in);
+
+                int count = in.getInt();
+                ret.varnode_space = new byte[count];
+                ret.varnode_offset = new long[count];
+                ret.varnode_size = new int[count];
+                ret.varnode_def = new int[count];
+                for (int i = 0; i < count; i++) {
+                    ret.varnode_space[i] = in.get();
+                    ret.varnode_offset[i] = in.getLong();
+                    ret.varnode_size[i] = in.getInt();
+                    ret.varnode_def[i] = in.getInt();
+                }
+
+                count = in.getInt();
+                ret.op_code = new int[count];
+                ret.op_address = new long[count];
+                ret.op_order = new int[count];
+                ret.op_block = new int[count];
+                ret.op_output = new int[count];
+                ret.op_input_start = new int[count];
+                ret.op_input_count = new int[count];
+                for (int i = 0; i < count; i++) {
+                    ret.op_code[i] = in.getInt();
+                    ret.op_address[i] = in.getLong();
+                    ret.op_order[i] = in.getInt();
+                    ret.op_block[i] = in.getInt();
+                    ret.op_output[i] = in.getInt();
+                    ret.op_input_start[i] = in.getInt();
+                    ret.op_input_count[i] = in.getInt();
+                }
+                ret.inputs = new int[in.getInt()];
+                in.asIntBuffer().get(ret.inputs);
+                in.position(in.position() + ret.inputs.length * Integer.BYTES);
+
+                count = in.getInt();
+                ret.block_start = new long[count];
+                ret.block_stop = new long[count];
+                ret.block_first_op = new int[count];
+                ret.block_op_count = new int[count];
+                ret.block_true_out = new int[count];
+                ret.block_false_out = new int[count];
+                ret.block_cmov = new boolean[count];
+                for (int i = 0; i < count; i++) {
+                    ret.block_start[i] = in.getLong();
+                    ret.block_stop[i] = in.getLong();
+                    ret.block_first_op[i] = in.getInt();
+                    ret.block_op_count[i] = in.getInt();
+                    ret.block_true_out[i] = in.getInt();
+                    ret.block_false_out[i] = in.getInt();
+                    ret.block_cmov[i] = in.get() != 0;
+                }
+
+                count = in.getInt();
+                ret.edge_from = new int[count];
+                ret.edge_to = new int[count];
+                for (int i = 0; i < count; i++) {
+                    ret.edge_from[i] = in.getInt();
+                    ret.edge_to[i] = in.getInt();
+                }
+                ret.buildIndex();
+                return ret;
+            }
+        }
+
+        // length (unsigned short) and UTF-8 bytes
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(ByteBuffer in) {
+            byte[] bytes = new byte[in.getShort() & 0xffff];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // Import a text dump in which every op is printed as "(space, 0xoffset, size) OPCODE (inputs) , ..." (or
+        // " --- " for no output) under the "Address: 0x..." line of its instruction. Such a dump has no blocks, nor
+        // SSA identity of varnodes, so an input is linked to the latest op written before with the same output
+        // location, and varnodes without such op are free inputs.
+        public static PcodeSnapshot importText(File file, String name) throws IOException {
+            Pattern varnode_pattern = Pattern.compile("\\((\\w+), 0x([0-9a-f]+), (\\d+)\\)");
+            Map<String, Integer> opcodes = new HashMap<>();
+            for (int i = 0; i < OPCODE_NAMES.length; i++)
+                if (OPCODE_NAMES[i] != null)
+                    opcodes.put(OPCODE_NAMES[i], i);
+
+            Vector<String> spaces = new Vector<>();
+            Vector<long[]> varnodes = new Vector<>();
+            Vector<long[]> ops = new Vector<>();
+            Vector<Integer> inputs = new Vector<>();
+            // location -> the varnode defined there last
+            Map<String, Integer> defined = new HashMap<>();
+            long address = 0;
+            int order = 0;
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                int line_no = 0;
+                while ((line = reader.readLine()) != null) {
+                    line_no++;
+                    if (line.isBlank())
+                        continue;
+                    if (line.startsWith("Address: 0x")) {
+                        address = Long.parseUnsignedLong(line.substring(11).trim(), 16);
+                        order = 0;
+                        continue;
+                    }
+                    Matcher m = varnode_pattern.matcher(line);
+                    int opcode_start;
+                    boolean has_output = line.startsWith("(");
+                    if (has_output) {
+                        if (!m.find())
+                            throw new IOException(String.format("%s:%d: bad output varnode", file, line_no));
+                        opcode_start = m.end();
+                    } else if (line.trim().startsWith("---")) {
+                        opcode_start = line.indexOf("---") + 3;
+                    } else {
+                        throw new IOException(String.format("%s:%d: unknown line \"%s\"", file, line_no, line));
+                    }
+                    String rest = line.substring(opcode_start).trim();
+                    int space = rest.indexOf(' ');
+                    String opcode_name = space < 0 ? rest : rest.substring(0, space);
+                    Integer opcode = opcodes.get(opcode_name);
+                    if (opcode == null)
+                        throw new IOException(String.format("%s:%d: unknown opcode %s", file, line_no, opcode_name));
+
+                    int op = ops.size();
+                    int input_start = inputs.size();
+                    while (m.find()) {
+                        String location = m.group(1) + ":" + m.group(2) + ":" + m.group(3);
+                        Integer varnode = m.group(1).equals("const") ? null : defined.get(location);
+                        if (varnode == null) {
+                            varnode = varnodes.size();
+                            varnodes.add(new long[] {spaceIndex(spaces, m.group(1)),
+                                    Long.parseUnsignedLong(m.group(2), 16), Long.parseLong(m.group(3)), -1});
+                        }
+                        inputs.add(varnode);
+                    }
+                    int output = -1;
+                    if (has_output) {
+                        m.reset();
+                        m.find();
+                        output = varnodes.size();
+                        varnodes.add(new long[] {spaceIndex(spaces, m.group(1)),
+                                Long.parseUnsignedLong(m.group(2), 16), Long.parseLong(m.group(3)), op});
+                        defined.put(m.group(1) + ":" + m.group(2) + ":" + m.group(3), output);
+                    }
+                    ops.add(new long[] {opcode, address, order++, output, input_start, inputs.size() - input_start});
+                }
+            }
+
+            PcodeSnapshot ret = new PcodeSnapshot();
+            ret.entry = ops.isEmpty() ? 0 : ops.get(0)[1];
+            ret.name = name;
+            ret.spaces = spaces.toArray(new String[0]);
+            ret.varnode_space = new byte[varnodes.size()];
+            ret.varnode_offset = new long[varnodes.size()];
+            ret.varnode_size = new int[varnodes.size()];
+            ret.varnode_def = new int[varnodes.size()];
+            for (int i = 0; i < varnodes.size(); i++) {
+                long[] v = varnodes.get(i);
+                ret.varnode_space[i] = (byte) v[0];
+                ret.varnode_offset[i] = v[1];
+                ret.varnode_size[i] = (int) v[2];
+                ret.varnode_def[i] = (int) v[3];
+            }
+            ret.op_code = new int[ops.size()];
+            ret.op_address = new long[ops.size()];
+            ret.op_order = new int[ops.size()];
+            ret.op_block = new int[ops.size()];
+            ret.op_output = new int[ops.size()];
+            ret.op_input_start = new int[ops.size()];
+            ret.op_input_count = new int[ops.size()];
+            for (int i = 0; i < ops.size(); i++) {
+                long[] o = ops.get(i);
+                ret.op_code[i] = (int) o[0];
+                ret.op_address[i] = o[1];
+                ret.op_order[i] = (int) o[2];
+                ret.op_block[i] = -1;
+                ret.op_output[i] = (int) o[3];
+                ret.op_input_start[i] = (int) o[4];
+                ret.op_input_count[i] = (int) o[5];
+            }
+            ret.inputs = inputs.stream().mapToInt(Integer::intValue).toArray();
+            ret.block_start = new long[0];
+            ret.block_stop = new long[0];
+            ret.block_first_op = new int[0];
+            ret.block_op_count = new int[0];
+            ret.block_true_out = new int[0];
+            ret.block_false_out = new int[0];
+            ret.block_cmov = new boolean[0];
+            ret.edge_from = new int[0];
+            ret.edge_to = new int[0];
+            ret.buildIndex();
+            return ret;
+        }
+
+        static int spaceIndex(Vector<String> spaces, String space) {
+            int ret = spaces.indexOf(space);
+            if (ret >= 0)
+                return ret;
+            spaces.add(space);
+            return spaces.size() - 1;
+        }
+
+        public String varnodeToString(int varnode) {
+            return String.format("(%s, %#x, %d)", this.spaces[this.varnode_space[varnode]],
+                    this.varnode_offset[varnode], this.varnode_size[varnode]);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("p-code snapshot of %s(%#x): %d varnodes, %d ops, %d blocks, %d edges", this.name,
+                    this.entry, this.varnodeCount(), this.opCount(), this.blockCount(), this.edge_from.length);
+        }
+    }
+
+    // An empty PcodeSnapshot reading memory from `program`.
+    static PcodeSnapshot newProgramSnapshot(Program program) {
+        Memory mem = program.getMemory();
+        AddressSpace ram = program.getAddressFactory().getDefaultAddressSpace();
+        return new PcodeSnapshot() {
+            @Override
+            public long readMemory(long address, int size) throws Exception {
+                Address at = ram.getAddress(address);
+                return switch (size) {
+                    case 1 -> mem.getByte(at) & 0xffL;
+                    case 2 -> mem.getShort(at) & 0xffffL;
+                    case 4 -> mem.getInt(at) & 0xffffffffL;
+                    case 8 -> mem.getLong(at);
+                    default -> throw new Exception("Invalid dispatcher size");
+                };
+            }
+        };
+    }
+
+    // Take a PcodeSnapshot of a decompiled function. Ops are numbered block by block, so that a block owns a range.
+    // Memory is read from the program of the function.
+    public PcodeSnapshot capturePcode(HighFunction hFunction) {
+        Function func = hFunction.getFunction();
+        Program program = func.getProgram();
+        ArrayList<PcodeBlockBasic> blocks = hFunction.getBasicBlocks();
+        Vector<String> spaces = new Vector<>();
+        Map<Varnode, Integer> varnode_ids = new HashMap<>();
+        Vector<Varnode> varnodes = new Vector<>();
+        Vector<PcodeOp> ops = new Vector<>();
+        Map<PcodeOp, Integer> op_ids = new HashMap<>();
+        PcodeSnapshot ret = newProgramSnapshot(program);
+        ret.block_first_op = new int[blocks.size()];
+        ret.block_op_count = new int[blocks.size()];
+        for (PcodeBlockBasic block: blocks) {
+            ret.block_first_op[block.getIndex()] = ops.size();
+            for (Iterator<PcodeOp> it = block.getIterator(); it.hasNext(); ) {
+                PcodeOp op = it.next();
+                op_ids.put(op, ops.size());
+                ops.add(op);
+            }
+            ret.block_op_count[block.getIndex()] = ops.size() - ret.block_first_op[block.getIndex()];
+        }
+
+        ret.op_code = new int[ops.size()];
+        ret.op_address = new long[ops.size()];
+        ret.op_order = new int[ops.size()];
+        ret.op_block = new int[ops.size()];
+        ret.op_output = new int[ops.size()];
+        ret.op_input_start = new int[ops.size()];
+        ret.op_input_count = new int[ops.size()];
+        Vector<Integer> inputs = new Vector<>();
+        for (int i = 0; i < ops.size(); i++) {
+            PcodeOp op = ops.get(i);
+            ret.op_code[i] = op.getOpcode();
+            ret.op_address[i] = op.getSeqnum().getTarget().getOffset();
+            ret.op_order[i] = op.getSeqnum().getOrder();
+            ret.op_block[i] = op.getParent().getIndex();
+            ret.op_output[i] = op.getOutput() == null ? -1 :
+                    varnode_ids.computeIfAbsent(op.getOutput(), v -> { varnodes.add(v); return varnodes.size() - 1; });
+            ret.op_input_start[i] = inputs.size();
+            ret.op_input_count[i] = op.getNumInputs();
+            for (int j = 0; j < op.getNumInputs(); j++)
+                inputs.add(varnode_ids.computeIfAbsent(op.getInput(j),
+                        v -> { varnodes.add(v); return varnodes.size() - 1; }));
+        }
+        ret.inputs = inputs.stream().mapToInt(Integer::intValue).toArray();
+
+        ret.varnode_space = new byte[varnodes.size()];
+        ret.varnode_offset = new long[varnodes.size()];
+        ret.varnode_size = new int[varnodes.size()];
+        ret.varnode_def = new int[varnodes.size()];
+        for (int i = 0; i < varnodes.size(); i++) {
+            Varnode v = varnodes.get(i);
+            ret.varnode_space[i] = (byte) PcodeSnapshot.spaceIndex(spaces, v.getAddress().getAddressSpace().getName());
+            ret.varnode_offset[i] = v.getOffset();
+            ret.varnode_size[i] = v.getSize();
+            ret.varnode_def[i] = v.getDef() == null ? -1 : op_ids.getOrDefault(v.getDef(), -1);
+        }
+        ret.spaces = spaces.toArray(new String[0]);
+
+        ret.block_start = new long[blocks.size()];
+        ret.block_stop = new long[blocks.size()];
+        ret.block_true_out = new int[blocks.size()];
+        ret.block_false_out = new int[blocks.size()];
+        ret.block_cmov = new boolean[blocks.size()];
+        Vector<int[]> edges = new Vector<>();
+        for (PcodeBlockBasic block: blocks) {
+            int index = block.getIndex();
+            ret.block_start[index] = block.getStart().getOffset();
+            ret.block_stop[index] = block.getStop().getOffset();
+            // A single instruction block of CMOVxx, it selects the next value of state var
+            if (block.getStart().equals(block.getStop())) {
+                Instruction insn = program.getListing().getInstructionAt(block.getStart());
+                ret.block_cmov[index] = insn != null && insn.getMnemonicString().startsWith("CMOV");
+            }
+            ret.block_true_out[index] = block.getOutSize() == 2 ? block.getTrueOut().getIndex() : -1;
+            ret.block_false_out[index] = block.getOutSize() == 2 ? block.getFalseOut().getIndex() : -1;
+            for (int i = 0; i < block.getOutSize(); i++)
+                edges.add(new int[] {index, block.getOut(i).getIndex()});
+        }
+        ret.edge_from = edges.stream().mapToInt(e -> e[0]).toArray();
+        ret.edge_to = edges.stream().mapToInt(e -> e[1]).toArray();
+
+        ret.entry = func.getEntryPoint().getOffset();
+        ret.name = func.getName();
+        ret.buildIndex();
+        return ret;
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+///////////////////////////////////////////////////// RawPcodeSSA //////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * RawPcodeSSA: A PcodeSnapshot built straight from the p-code of instructions, without decompiling.
+ * Basic blocks are cut at p-code branches, so a CMOVxx gets a block of its own like it does in the decompiler.
+ * Registers, temporaries and stack slots (loads and stores at a known offset from the stack pointer at entry) are
+ * renamed block by block, and a location read before being written in a block becomes a MULTIEQUAL of its values at
+ * the end of the predecessors. Trivial MULTIEQUALs are removed afterwards, and so are ops that no branch, call or store
+ * depends on. It only simplifies copies, constant arithmetic and the compare patterns of x86 flags, which is all that a
+ * textbook flattened dispatcher needs, other ops are kept as they are. Stack slots are found in two passes: the first
+ * one renames registers only to get the stack offsets of addresses, the second one also renames the slots.
+ */
+    static class RawPcodeSSA {
+        // a location of raw p-code, space is an index of spaces
+        record RawVarnode(int space, long offset, int size) {}
+
+        record RawOp(int opcode, RawVarnode output, RawVarnode[] inputs) {}
+
+        // fall_through is -1 for an instruction which never goes to the next one
+        record RawInstruction(long address, long fall_through, boolean cmov, RawOp[] ops) {}
+
+        // a value in SSA form, `replacement` is set when it turns out to be the same as another one
+        static class Value {
+            final RawVarnode location;
+            Op def;
+            Value replacement;
+            // offset from the stack pointer at entry, if stack_known
+            long stack;
+            boolean stack_known;
+            // index in the snapshot, -1 if not numbered yet
+            int id = -1;
+
+            Value(RawVarnode location, Op def) {
+                this.location = location;
+                this.def = def;
+            }
+        }
+
+        static class Op {
+            final int opcode;
+            final long address;
+            final Block block;
+            Value output;
+            Value[] inputs;
+            boolean live;
+
+            Op(int opcode, long address, Block block) {
+                this.opcode = opcode;
+                this.address = address;
+                this.block = block;
+            }
+        }
+
+        static class Block {
+            // raw ops [first, end)
+            final int first;
+            final int end;
+            final Vector<Block> outs = new Vector<>();
+            final Vector<Block> preds = new Vector<>();
+            boolean reachable;
+            Vector<Op> phis;
+            ArrayList<Op> ops;
+            // space -> offset -> value of the location there, locations of a space never overlap
+            Vector<TreeMap<Long, Value>> defs;
+            // location -> MULTIEQUAL giving its value at the start of the block
+            Map<RawVarnode, Op> live_ins;
+            // a call was made, registers not kept by callees and not written since are unknown
+            boolean clobbered;
+
+            Block(int first, int end) {
+                this.first = first;
+                this.end = end;
+            }
+        }
+
+        public final String name;
+        public final long entry;
+        final Vector<String> spaces = new Vector<>();
+        private final int const_space;
+        private final int ram_space;
+        private final int register_space;
+        private final int unique_space;
+        private final int stack_space;
+        private final RawVarnode stack_pointer;
+        // bytes a callee pops besides its arguments, the return address on x86, -1 if unknown
+        private final int extrapop;
+        // registers kept by callees
+        private final Vector<RawVarnode> unaffected = new Vector<>();
+        private final Vector<RawInstruction> instructions = new Vector<>();
+
+        // raw ops of all instructions in address order, with the instruction of each
+        private RawOp[] raw;
+        private int[] raw_insn;
+        // first raw op of each instruction, and the end of the last one
+        private int[] insn_first;
+        private Map<Long, Integer> insn_at;
+        // raw op -> its block, only at the first op of a block
+        private Block[] block_at;
+        private Vector<Block> blocks;
+        private Block entry_block;
+
+        // values of a pass
+        private Map<RawVarnode, Value> constants;
+        private Map<RawVarnode, Value> free;
+        private Vector<Op> pending;
+        // raw LOAD and STORE -> its address, filled in the first pass
+        private Value[] addresses;
+        // raw LOAD and STORE -> stack offset of its address, used in the second pass
+        private long[] slot_offsets;
+        private boolean[] on_stack;
+
+        public RawPcodeSSA(String name, long entry, long stack_pointer, int stack_pointer_size, int extrapop) {
+            this.name = name;
+            this.entry = entry;
+            this.const_space = this.space("const");
+            this.ram_space = this.space("ram");
+            this.register_space = this.space("register");
+            this.unique_space = this.space("unique");
+            this.stack_space = this.space("stack");
+            this.stack_pointer = new RawVarnode(this.register_space, stack_pointer, stack_pointer_size);
+            this.extrapop = extrapop;
+        }
+
+        // index of the address space named `name`
+        public int space(String name) {
+            return PcodeSnapshot.spaceIndex(this.spaces, name);
+        }
+
+        public void addUnaffected(long offset, int size) {
+            this.unaffected.add(new RawVarnode(this.register_space, offset, size));
+        }
+
+        public void add(RawInstruction insn) {
+            this.instructions.add(insn);
+        }
+
+        // Build the SSA form and write it into `ret`. An Exception is thrown for control flow it cannot follow.
+        public void build(PcodeSnapshot ret) throws Exception {
+            this.flatten();
+            this.cutBlocks();
+
+            // first pass, registers only, to know which loads and stores are on the stack
+            this.addresses = new Value[this.raw.length];
+            this.rename();
+            this.findStackOffsets();
+            this.slot_offsets = new long[this.raw.length];
+            this.on_stack = new boolean[this.raw.length];
+            for (int j = 0; j < this.raw.length; j++) {
+                Value address = this.addresses[j] == null ? null : resolve(this.addresses[j]);
+                if (address != null && address.stack_known) {
+                    this.on_stack[j] = true;
+                    this.slot_offsets[j] = address.stack;
+                }
+            }
+            this.addresses = null;
+
+            this.rename();
+            this.markLive();
+            this.write(ret);
+        }
+
+        private void flatten() throws Exception {
+            this.instructions.sort(Comparator.comparingLong(RawInstruction::address));
+            this.insn_at = new HashMap<>();
+            this.insn_first = new int[this.instructions.size() + 1];
+            int count = 0;
+            for (int i = 0; i < this.instructions.size(); i++) {
+                this.insn_at.put(this.instructions.get(i).address(), i);
+                this.insn_first[i] = count;
+                count += this.instructions.get(i).ops().length;
+            }
+            this.insn_first[this.instructions.size()] = count;
+            this.raw = new RawOp[count];
+            this.raw_insn = new int[count];
+            for (int i = 0; i < this.instructions.size(); i++) {
+                RawOp[] ops = this.instructions.get(i).ops();
+                for (int k = 0; k < ops.length; k++) {
+                    this.raw[this.insn_first[i] + k] = ops[k];
+                    this.raw_insn[this.insn_first[i] + k] = i;
+                }
+            }
+            if (this.opAt(this.entry) == -1)
+                throw new Exception(String.format("No p-code at entry %#x of %s", this.entry, this.name));
+        }
+
+        // first raw op of the instruction at `address`, -1 if it's not in the function
+        private int opAt(long address) {
+            Integer insn = this.insn_at.get(address);
+            return insn == null || this.insn_first[insn] == this.raw.length ? -1 : this.insn_first[insn];
+        }
+
+        // first raw op after instruction `insn`, -1 if it doesn't go on or goes out of the function
+        private int fallThrough(int insn) {
+            long next = this.instructions.get(insn).fall_through();
+            return next == -1 ? -1 : this.opAt(next);
+        }
+
+        // raw op run after `j` when it doesn't branch
+        private int next(int j) {
+            int insn = this.raw_insn[j];
+            return j + 1 < this.insn_first[insn + 1] ? j + 1 : this.fallThrough(insn);
+        }
+
+        // raw op a BRANCH or CBRANCH goes to, -1 if it leaves the function
+        private int target(int j) throws Exception {
+            RawVarnode dest = this.raw[j].inputs()[0];
+            if (dest.space() != this.const_space)
+                return this.opAt(dest.offset());
+            // relative to this op, inside its instruction
+            int insn = this.raw_insn[j];
+            int ret = j + (int) dest.offset();
+            if (ret < this.insn_first[insn] || ret > this.insn_first[insn + 1])
+                throw new Exception(String.format("Relative branch at %#x leaves its instruction", this.address(j)));
+            return ret == this.insn_first[insn + 1] ? this.fallThrough(insn) : ret;
+        }
+
+        private long address(int j) {
+            return this.instructions.get(this.raw_insn[j]).address();
+        }
+
+        private static boolean isTerminator(int opcode) {
+            return opcode == PcodeOp.BRANCH || opcode == PcodeOp.CBRANCH || opcode == PcodeOp.BRANCHIND ||
+                    opcode == PcodeOp.RETURN;
+        }
+
+        // Cut raw ops into basic blocks and link the ones reachable from entry.
+        private void cutBlocks() throws Exception {
+            boolean[] leader = new boolean[this.raw.length + 1];
+            leader[0] = true;
+            leader[this.opAt(this.entry)] = true;
+            for (int j = 0; j < this.raw.length; j++) {
+                int opcode = this.raw[j].opcode();
+                if (isTerminator(opcode))
+                    leader[j + 1] = true;
+                if (opcode == PcodeOp.BRANCH || opcode == PcodeOp.CBRANCH) {
+                    int target = this.target(j);
+                    if (target != -1)
+                        leader[target] = true;
+                }
+                if (opcode != PcodeOp.BRANCH && opcode != PcodeOp.BRANCHIND && opcode != PcodeOp.RETURN) {
+                    int next = this.next(j);
+                    if (next != j + 1) {
+                        leader[j + 1] = true;
+                        if (next != -1)
+                            leader[next] = true;
+                    }
+                }
+            }
+            leader[this.raw.length] = true;
+            this.block_at = new Block[this.raw.length];
+            Vector<Block> all = new Vector<>();
+            for (int j = 0, first = 0; j < this.raw.length; j++) {
+                if (leader[j + 1]) {
+                    Block block = new Block(first, j + 1);
+                    this.block_at[first] = block;
+                    all.add(block);
+                    first = j + 1;
+                }
+            }
+
+            // only blocks reachable from entry are kept, like the decompiler does
+            this.entry_block = this.block_at[this.opAt(this.entry)];
+            this.entry_block.reachable = true;
+            Vector<Block> worklist = new Vector<>(List.of(this.entry_block));
+            while (!worklist.isEmpty()) {
+                Block block = worklist.remove(worklist.size() - 1);
+                int last = block.end - 1;
+                switch (this.raw[last].opcode()) {
+                    case PcodeOp.RETURN -> { }
+                    case PcodeOp.BRANCHIND -> throw new Exception(String.format(
+                            "Indirect branch at %#x cannot be followed without decompiling", this.address(last)));
+                    case PcodeOp.BRANCH -> {
+                        int target = this.target(last);
+                        if (target != -1)
+                            block.outs.add(this.block_at[target]);
+                    }
+                    case PcodeOp.CBRANCH -> {
+                        int target = this.target(last), next = this.next(last);
+                        if (target == -1 || next == -1)
+                            throw new Exception(String.format(
+                                    "Conditional branch at %#x leaves the function", this.address(last)));
+                        // true out first, then false out
+                        block.outs.add(this.block_at[target]);
+                        block.outs.add(this.block_at[next]);
+                    }
+                    default -> {
+                        int next = this.next(last);
+                        if (next != -1)
+                            block.outs.add(this.block_at[next]);
+                    }
+                }
+                for (Block out: block.outs) {
+                    out.preds.add(block);
+                    if (!out.reachable) {
+                        out.reachable = true;
+                        worklist.add(out);
+                    }
+                }
+            }
+            this.blocks = new Vector<>();
+            for (Block block: all)
+                if (block.reachable)
+                    this.blocks.add(block);
+        }
+
+        // Rename all blocks, fill the inputs of the MULTIEQUALs they need and remove the trivial ones.
+        private void rename() throws Exception {
+            this.constants = new HashMap<>();
+            this.free = new HashMap<>();
+            this.pending = new Vector<>();
+            for (Block block: this.blocks) {
+                block.phis = new Vector<>();
+                block.ops = new ArrayList<>();
+                block.defs = new Vector<>();
+                for (int i = 0; i < this.spaces.size(); i++)
+                    block.defs.add(new TreeMap<>());
+                block.live_ins = new HashMap<>();
+                block.clobbered = false;
+            }
+            for (Block block: this.blocks)
+                for (int j = block.first; j < block.end; j++)
+                    this.translate(block, j);
+
+            // values at the end of predecessors, this may need more MULTIEQUALs there
+            while (!this.pending.isEmpty()) {
+                Op phi = this.pending.remove(this.pending.size() - 1);
+                RawVarnode location = phi.output.location;
+                Vector<Value> inputs = new Vector<>();
+                if (phi.block == this.entry_block)
+                    inputs.add(this.freeValue(location));
+                for (Block pred: phi.block.preds)
+                    inputs.add(this.read(pred, location, true, pred.end - 1));
+                phi.inputs = inputs.toArray(new Value[0]);
+            }
+
+            // a MULTIEQUAL of only one value (and itself) is that value
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Block block: this.blocks) {
+                    for (Op phi: block.phis) {
+                        if (phi.output.replacement != null)
+                            continue;
+                        Value same = null;
+                        boolean trivial = true;
+                        for (Value input: phi.inputs) {
+                            Value r = resolve(input);
+                            if (r == phi.output || r == same)
+                                continue;
+                            if (same != null) {
+                                trivial = false;
+                                break;
+                            }
+                            same = r;
+                        }
+                        if (trivial) {
+                            phi.output.replacement = same == null ? new Value(phi.output.location, null) : same;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+            for (Block block: this.blocks)
+                block.phis.removeIf(phi -> phi.output.replacement != null);
+        }
+
+        static Value resolve(Value value) {
+            Value ret = value;
+            while (ret.replacement != null)
+                ret = ret.replacement;
+            // chains of removed MULTIEQUALs are long in a dispatcher, point them all to the end
+            while (value != ret) {
+                Value next = value.replacement;
+                value.replacement = ret;
+                value = next;
+            }
+            return ret;
+        }
+
+        private void translate(Block block, int j) throws Exception {
+            RawOp raw = this.raw[j];
+            RawVarnode[] in = raw.inputs();
+            RawVarnode out = raw.output();
+            long address = this.address(j);
+            switch (raw.opcode()) {
+                case PcodeOp.COPY -> {
+                    Value value = this.read(block, in[0], false, j);
+                    Value constant = this.constantOf(value);
+                    // a constant is kept as an op, so that it can be found where it's written
+                    if (constant != null)
+                        this.emit(block, PcodeOp.COPY, address, out, false, constant);
+                    else
+                        this.assign(block, out, value);
+                }
+                case PcodeOp.LOAD -> {
+                    Value at = this.read(block, in[1], false, j);
+                    if (this.addresses != null)
+                        this.addresses[j] = at;
+                    Value constant = this.constantOf(at);
+                    if (this.on_stack != null && this.on_stack[j])
+                        this.assign(block, out, this.read(block,
+                                new RawVarnode(this.stack_space, this.slot_offsets[j], out.size()), false, j));
+                    else if (constant != null)
+                        this.assign(block, out, this.freeValue(
+                                new RawVarnode(this.ram_space, constant.location.offset(), out.size())));
+                    else
+                        this.emit(block, PcodeOp.LOAD, address, out, false, this.read(block, in[0], false, j), at);
+                }
+                case PcodeOp.STORE -> {
+                    Value at = this.read(block, in[1], false, j);
+                    Value value = this.read(block, in[2], false, j);
+                    if (this.addresses != null)
+                        this.addresses[j] = at;
+                    if (this.on_stack != null && this.on_stack[j]) {
+                        RawVarnode slot = new RawVarnode(this.stack_space, this.slot_offsets[j], in[2].size());
+                        // a known value is copied into the slot like the decompiler does, others pass through
+                        Value constant = this.constantOf(value);
+                        if (constant != null)
+                            this.emit(block, PcodeOp.COPY, address, slot, false, constant);
+                        else if (value.location.space() == this.ram_space && value.def == null)
+                            this.emit(block, PcodeOp.COPY, address, slot, false, value);
+                        else
+                            this.assign(block, slot, value);
+                    } else {
+                        this.emit(block, PcodeOp.STORE, address, null, false, this.read(block, in[0], false, j), at,
+                                value);
+                    }
+                }
+                case PcodeOp.CALL, PcodeOp.CALLIND -> {
+                    Value[] inputs = this.readAll(block, in, j);
+                    Value sp = this.read(block, this.stack_pointer, false, j);
+                    this.emit(block, raw.opcode(), address, out, false, inputs);
+                    this.clobber(block);
+                    // the callee returns with the return address popped
+                    if (this.extrapop != -1)
+                        this.addConstant(block, address, this.stack_pointer, sp, this.extrapop);
+                }
+                case PcodeOp.INT_EQUAL, PcodeOp.INT_NOTEQUAL -> {
+                    Value a = this.read(block, in[0], false, j), b = this.read(block, in[1], false, j);
+                    // ZF of x86 is (x - y) == 0 or (x + -y) == 0, which compares x with y
+                    Value zero = this.constantOf(b);
+                    if (zero != null && zero.location.offset() == 0 && a.def != null &&
+                            a.def.opcode == PcodeOp.INT_SUB) {
+                        b = a.def.inputs[1];
+                        a = a.def.inputs[0];
+                    } else if (zero != null && zero.location.offset() == 0 && a.def != null &&
+                            a.def.opcode == PcodeOp.INT_ADD && this.constantOf(a.def.inputs[1]) != null) {
+                        b = this.constant(-this.constantOf(a.def.inputs[1]).location.offset(), a.location.size());
+                        a = a.def.inputs[0];
+                    }
+                    Value constant = this.constantOf(b);
+                    this.emit(block, raw.opcode(), address, out, false, a, constant == null ? b : constant);
+                }
+                case PcodeOp.BOOL_NEGATE -> {
+                    Value value = this.read(block, in[0], false, j);
+                    Op def = value.def;
+                    if (def != null && def.opcode == PcodeOp.BOOL_NEGATE)
+                        this.assign(block, out, def.inputs[0]);
+                    else if (def != null && (def.opcode == PcodeOp.INT_EQUAL || def.opcode == PcodeOp.INT_NOTEQUAL))
+                        this.emit(block, def.opcode == PcodeOp.INT_EQUAL ? PcodeOp.INT_NOTEQUAL : PcodeOp.INT_EQUAL,
+                                address, out, false, def.inputs);
+                    else
+                        this.emit(block, PcodeOp.BOOL_NEGATE, address, out, false, value);
+                }
+                case PcodeOp.INT_ADD, PcodeOp.INT_SUB -> {
+                    Value a = this.read(block, in[0], false, j), b = this.read(block, in[1], false, j);
+                    Value ca = this.constantOf(a), cb = this.constantOf(b);
+                    long sign = raw.opcode() == PcodeOp.INT_ADD ? 1 : -1;
+                    if (ca != null && cb != null)
+                        this.assign(block, out, this.constant(ca.location.offset() + sign * cb.location.offset(),
+                                out.size()));
+                    else if (cb != null)
+                        this.addConstant(block, address, out, a, sign * cb.location.offset());
+                    else
+                        this.emit(block, raw.opcode(), address, out, false, a, b);
+                }
+                case PcodeOp.INT_ZEXT -> {
+                    Value value = this.read(block, in[0], false, j);
+                    // a copied constant is kept, where it's copied matters
+                    if (value.location.space() == this.const_space)
+                        this.assign(block, out, this.constant(value.location.offset(), out.size()));
+                    else
+                        this.emit(block, PcodeOp.INT_ZEXT, address, out, false, value);
+                }
+                case PcodeOp.SUBPIECE -> this.assign(block, out,
+                        this.narrow(block, this.read(block, in[0], false, j), (int) in[1].offset(), out, false, j));
+                default -> this.emit(block, raw.opcode(), address, out, false, this.readAll(block, in, j));
+            }
+        }
+
+        // `out` = `value` + `constant`, and (x + c1) + c2 as x + (c1 + c2), so that a push and a pop give back the same
+        // stack pointer
+        private void addConstant(Block block, long address, RawVarnode out, Value value, long constant) {
+            Op def = value.def;
+            if (def != null && (def.opcode == PcodeOp.INT_ADD || def.opcode == PcodeOp.INT_SUB) &&
+                    this.constantOf(def.inputs[1]) != null) {
+                constant += (def.opcode == PcodeOp.INT_ADD ? 1 : -1) * this.constantOf(def.inputs[1]).location.offset();
+                value = def.inputs[0];
+            }
+            Value c = this.constant(constant, out.size());
+            if (c.location.offset() == 0)
+                this.assign(block, out, value);
+            else
+                this.emit(block, PcodeOp.INT_ADD, address, out, false, value, c);
+        }
+
+        private Value[] readAll(Block block, RawVarnode[] in, int j) {
+            Value[] ret = new Value[in.length];
+            for (int i = 0; i < in.length; i++)
+                ret[i] = this.read(block, in[i], false, j);
+            return ret;
+        }
+
+        // Value of `at` in `block` at raw op `j`, or at the end of the block.
+        private Value read(Block block, RawVarnode at, boolean at_end, int j) {
+            if (at.space() == this.const_space)
+                return this.constant(at.offset(), at.size());
+            if (!this.isRenamed(at.space()))
+                return this.freeValue(at);
+            Map.Entry<Long, Value> e = block.defs.get(at.space()).floorEntry(at.offset() + at.size() - 1);
+            if (e != null && e.getKey() + e.getValue().location.size() > at.offset()) {
+                Value value = e.getValue();
+                if (e.getKey() == at.offset() && value.location.size() == at.size())
+                    return value;
+                // a part of a wider location, like EAX of RAX
+                if (e.getKey() <= at.offset() && e.getKey() + value.location.size() >= at.offset() + at.size())
+                    return this.narrow(block, value, (int) (at.offset() - e.getKey()), at, at_end, j);
+                // pieces of several locations, not worth joining
+                return new Value(at, null);
+            }
+            if (at.space() == this.register_space && block.clobbered && !this.isUnaffected(at))
+                return new Value(at, null);
+            Op phi = block.live_ins.get(at);
+            if (phi == null) {
+                phi = new Op(PcodeOp.MULTIEQUAL, this.address(block.first), block);
+                phi.output = new Value(at, phi);
+                block.live_ins.put(at, phi);
+                block.phis.add(phi);
+                this.pending.add(phi);
+            }
+            return phi.output;
+        }
+
+        // `at` takes `value`, what it overlaps is cut, and the pieces left are unknown
+        private void assign(Block block, RawVarnode at, Value value) {
+            if (!this.isRenamed(at.space()))
+                return;
+            TreeMap<Long, Value> defs = block.defs.get(at.space());
+            long end = at.offset() + at.size();
+            Map.Entry<Long, Value> e;
+            while ((e = defs.floorEntry(end - 1)) != null && e.getKey() + e.getValue().location.size() > at.offset()) {
+                defs.remove(e.getKey());
+                long old_end = e.getKey() + e.getValue().location.size();
+                if (e.getKey() < at.offset())
+                    defs.put(e.getKey(), new Value(
+                            new RawVarnode(at.space(), e.getKey(), (int) (at.offset() - e.getKey())), null));
+                if (old_end > end)
+                    defs.put(end, new Value(new RawVarnode(at.space(), end, (int) (old_end - end)), null));
+            }
+            defs.put(at.offset(), value);
+        }
+
+        // registers not kept by callees are unknown after a call
+        private void clobber(Block block) {
+            block.defs.get(this.register_space).values().removeIf(value -> !this.isUnaffected(value.location));
+            block.defs.get(this.unique_space).clear();
+            block.clobbered = true;
+        }
+
+        // `size` bytes of `value` from byte `offset`, p-code of x86 writes RAX after EAX and reads EAX back
+        private Value narrow(Block block, Value value, int offset, RawVarnode at, boolean at_end, int j) {
+            if (value.location.space() == this.const_space)
+                return this.constant(value.location.offset() >>> (offset * 8), at.size());
+            if (offset == 0 && value.def != null && value.def.opcode == PcodeOp.INT_ZEXT &&
+                    value.def.inputs[0].location.size() == at.size())
+                return value.def.inputs[0];
+            return this.emit(block, PcodeOp.SUBPIECE, this.address(j), at, at_end, value,
+                    this.constant(offset, 4));
+        }
+
+        // Add an op to `block`, at its end but before its branch if `at_end`, and write its output if any.
+        private Value emit(Block block, int opcode, long address, RawVarnode out, boolean at_end, Value... inputs) {
+            Op op = new Op(opcode, address, block);
+            op.inputs = inputs;
+            if (at_end && !block.ops.isEmpty() && isTerminator(block.ops.get(block.ops.size() - 1).opcode))
+                block.ops.add(block.ops.size() - 1, op);
+            else
+                block.ops.add(op);
+            if (out == null)
+                return null;
+            op.output = new Value(out, op);
+            // a value made for a MULTIEQUAL of a successor is not where `out` lives in this block
+            if (!at_end)
+                this.assign(block, out, op.output);
+            return op.output;
+        }
+
+        // the constant `value` is, directly or copied, null if it's not a constant
+        private Value constantOf(Value value) {
+            if (value.location.space() == this.const_space)
+                return value;
+            if (value.def != null && value.def.opcode == PcodeOp.COPY &&
+                    value.def.inputs[0].location.space() == this.const_space)
+                return value.def.inputs[0];
+            return null;
+        }
+
+        private Value constant(long value, int size) {
+            if (size < 8)
+                value &= (1L << (size * 8)) - 1;
+            return this.constants.computeIfAbsent(new RawVarnode(this.const_space, value, size),
+                    at -> new Value(at, null));
+        }
+
+        // value of a location never written in the function, or in memory which is not renamed
+        private Value freeValue(RawVarnode at) {
+            return this.free.computeIfAbsent(at, location -> new Value(location, null));
+        }
+
+        private boolean isRenamed(int space) {
+            return space == this.register_space || space == this.unique_space || space == this.stack_space;
+        }
+
+        private boolean isUnaffected(RawVarnode at) {
+            if (at.equals(this.stack_pointer))
+                return false;
+            for (RawVarnode kept: this.unaffected)
+                if (kept.offset() <= at.offset() && kept.offset() + kept.size() >= at.offset() + at.size())
+                    return true;
+            return false;
+        }
+
+        private static long signExtend(long value, int size) {
+            return size >= 8 ? value : value << (64 - size * 8) >> (64 - size * 8);
+        }
+
+        // Offsets from the stack pointer at entry, through additions of constants and MULTIEQUALs agreeing on them.
+        private void findStackOffsets() {
+            Value sp = this.free.get(this.stack_pointer);
+            if (sp == null)
+                return;
+            sp.stack_known = true;
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Block block: this.blocks) {
+                    for (Op op: block.phis)
+                        changed |= this.stackOffset(op);
+                    for (Op op: block.ops)
+                        changed |= this.stackOffset(op);
+                }
+            }
+        }
+
+        private boolean stackOffset(Op op) {
+            if (op.output == null || op.output.stack_known)
+                return false;
+            Value a = op.inputs.length > 0 ? resolve(op.inputs[0]) : null;
+            Value b = op.inputs.length > 1 ? resolve(op.inputs[1]) : null;
+            long offset;
+            if (op.opcode == PcodeOp.INT_ADD && a.stack_known && this.constantOf(b) != null) {
+                offset = a.stack + signExtend(this.constantOf(b).location.offset(), b.location.size());
+            } else if (op.opcode == PcodeOp.INT_ADD && b.stack_known && this.constantOf(a) != null) {
+                offset = b.stack + signExtend(this.constantOf(a).location.offset(), a.location.size());
+            } else if (op.opcode == PcodeOp.INT_SUB && a.stack_known && this.constantOf(b) != null) {
+                offset = a.stack - signExtend(this.constantOf(b).location.offset(), b.location.size());
+            } else if (op.opcode == PcodeOp.MULTIEQUAL) {
+                for (Value input: op.inputs)
+                    if (!resolve(input).stack_known || resolve(input).stack != a.stack)
+                        return false;
+                offset = a.stack;
+            } else {
+                return false;
+            }
+            op.output.stack = offset;
+            op.output.stack_known = true;
+            return true;
+        }
+
+        // Mark ops that a branch, call, return or store depends on.
+        private void markLive() {
+            Vector<Op> worklist = new Vector<>();
+            for (Block block: this.blocks)
+                for (Op op: block.ops)
+                    if (isTerminator(op.opcode) || op.opcode == PcodeOp.CALL || op.opcode == PcodeOp.CALLIND ||
+                            op.opcode == PcodeOp.CALLOTHER || op.opcode == PcodeOp.STORE) {
+                        op.live = true;
+                        worklist.add(op);
+                    }
+            while (!worklist.isEmpty()) {
+                Op op = worklist.remove(worklist.size() - 1);
+                for (int i = 0; i < op.inputs.length; i++) {
+                    op.inputs[i] = resolve(op.inputs[i]);
+                    Op def = op.inputs[i].def;
+                    if (def != null && !def.live) {
+                        def.live = true;
+                        worklist.add(def);
+                    }
+                }
+            }
+        }
+
+        // Number live ops, their varnodes and blocks into `ret`.
+        private void write(PcodeSnapshot ret) {
+            Vector<Op> ops = new Vector<>();
+            Vector<Value> varnodes = new Vector<>();
+            int count = this.blocks.size();
+            ret.block_start = new long[count];
+            ret.block_stop = new long[count];
+            ret.block_first_op = new int[count];
+            ret.block_op_count = new int[count];
+            ret.block_true_out = new int[count];
+            ret.block_false_out = new int[count];
+            ret.block_cmov = new boolean[count];
+            Map<Block, Integer> index = new IdentityHashMap<>();
+            for (int i = 0; i < count; i++)
+                index.put(this.blocks.get(i), i);
+            Vector<int[]> edges = new Vector<>();
+            for (int i = 0; i < count; i++) {
+                Block block = this.blocks.get(i);
+                ret.block_start[i] = this.address(block.first);
+                ret.block_stop[i] = this.address(block.end - 1);
+                ret.block_cmov[i] = ret.block_start[i] == ret.block_stop[i] &&
+                        this.instructions.get(this.raw_insn[block.first]).cmov();
+                ret.block_first_op[i] = ops.size();
+                for (Op op: block.phis)
+                    if (op.live)
+                        ops.add(op);
+                for (Op op: block.ops)
+                    if (op.live)
+                        ops.add(op);
+                ret.block_op_count[i] = ops.size() - ret.block_first_op[i];
+                ret.block_true_out[i] = block.outs.size() == 2 ? index.get(block.outs.get(0)) : -1;
+                ret.block_false_out[i] = block.outs.size() == 2 ? index.get(block.outs.get(1)) : -1;
+                for (Block out: block.outs)
+                    edges.add(new int[] {i, index.get(out)});
+            }
+            ret.edge_from = edges.stream().mapToInt(e -> e[0]).toArray();
+            ret.edge_to = edges.stream().mapToInt(e -> e[1]).toArray();
+
+            Map<Op, Integer> op_ids = new IdentityHashMap<>();
+            for (int i = 0; i < ops.size(); i++)
+                op_ids.put(ops.get(i), i);
+            ret.op_code = new int[ops.size()];
+            ret.op_address = new long[ops.size()];
+            ret.op_order = new int[ops.size()];
+            ret.op_block = new int[ops.size()];
+            ret.op_output = new int[ops.size()];
+            ret.op_input_start = new int[ops.size()];
+            ret.op_input_count = new int[ops.size()];
+            Vector<Integer> inputs = new Vector<>();
+            for (int i = 0; i < ops.size(); i++) {
+                Op op = ops.get(i);
+                ret.op_code[i] = op.opcode;
+                ret.op_address[i] = op.address;
+                ret.op_order[i] = i;
+                ret.op_block[i] = index.get(op.block);
+                ret.op_output[i] = op.output == null ? -1 : this.number(op.output, varnodes);
+                ret.op_input_start[i] = inputs.size();
+                ret.op_input_count[i] = op.inputs.length;
+                for (Value input: op.inputs)
+                    inputs.add(this.number(input, varnodes));
+            }
+            ret.inputs = inputs.stream().mapToInt(Integer::intValue).toArray();
+
+            ret.varnode_space = new byte[varnodes.size()];
+            ret.varnode_offset = new long[varnodes.size()];
+            ret.varnode_size = new int[varnodes.size()];
+            ret.varnode_def = new int[varnodes.size()];
+            for (int i = 0; i < varnodes.size(); i++) {
+                Value v = varnodes.get(i);
+                ret.varnode_space[i] = (byte) v.location.space();
+                ret.varnode_offset[i] = v.location.offset();
+                ret.varnode_size[i] = v.location.size();
+                ret.varnode_def[i] = v.def == null ? -1 : op_ids.getOrDefault(v.def, -1);
+            }
+            ret.spaces = this.spaces.toArray(new String[0]);
+            ret.entry = this.entry;
+            ret.name = this.name;
+            ret.buildIndex();
+        }
+
+        private int number(Value value, Vector<Value> varnodes) {
+            if (value.id == -1) {
+                value.id = varnodes.size();
+                varnodes.add(value);
+            }
+            return value.id;
+        }
+    }
+
+    // Take a PcodeSnapshot of `func` from the p-code of its instructions, without decompiling, see RawPcodeSSA.
+    public PcodeSnapshot captureRawPcode(Function func) throws Exception {
+        Program program = func.getProgram();
+        CompilerSpec spec = program.getCompilerSpec();
+        PrototypeModel convention = Objects.requireNonNullElse(func.getCallingConvention(),
+                spec.getDefaultCallingConvention());
+        Register sp = spec.getStackPointer();
+        int extrapop = convention.getExtrapop();
+        RawPcodeSSA ssa = new RawPcodeSSA(func.getName(), func.getEntryPoint().getOffset(),
+                sp.getAddress().getOffset(), sp.getMinimumByteSize(),
+                extrapop == PrototypeModel.UNKNOWN_EXTRAPOP ? -1 : extrapop);
+        for (Varnode kept: convention.getUnaffectedList())
+            if (kept.isRegister())
+                ssa.addUnaffected(kept.getOffset(), kept.getSize());
+
+        for (Instruction insn: program.getListing().getInstructions(func.getBody(), true)) {
+            PcodeOp[] pcode = insn.getPcode();
+            RawPcodeSSA.RawOp[] ops = new RawPcodeSSA.RawOp[pcode.length];
+            for (int i = 0; i < pcode.length; i++) {
+                RawPcodeSSA.RawVarnode[] inputs = new RawPcodeSSA.RawVarnode[pcode[i].getNumInputs()];
+                for (int k = 0; k < inputs.length; k++)
+                    inputs[k] = rawVarnode(ssa, pcode[i].getInput(k));
+                ops[i] = new RawPcodeSSA.RawOp(pcode[i].getOpcode(), rawVarnode(ssa, pcode[i].getOutput()), inputs);
+            }
+            Address fall_through = insn.getFallThrough();
+            ssa.add(new RawPcodeSSA.RawInstruction(insn.getAddress().getOffset(),
+                    fall_through == null ? -1 : fall_through.getOffset(), insn.getMnemonicString().startsWith("CMOV"),
+                    ops));
+        }
+        PcodeSnapshot ret = newProgramSnapshot(program);
+        ssa.build(ret);
+        return ret;
+    }
+
+    private static RawPcodeSSA.RawVarnode rawVarnode(RawPcodeSSA ssa, Varnode v) {
+        return v == null ? null : new RawPcodeSSA.RawVarnode(ssa.space(v.getAddress().getAddressSpace().getName()),
+                v.getOffset(), v.getSize());
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+///////////////////////////////////////////////////// ResultStore //////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * ResultStore: Analysis results of functions kept on disk, one file per function and config entry. The key is a hash
+ * of the function bytes (with their addresses) and the config entry, so a changed function is simply missed.
+ *
+ * File format, big endian: magic "OLR1", i32 relation count, relations as (i64 constant, i64 target start, i64 target
+ * stop, i32 compare condition), i32 map count, maps as 6 i64 (block, true descend, false descend, each start and
+ * stop, -1 for no false descend). All addresses are offsets in default address space.
+ */
+    class ResultStore {
+        public static final int MAGIC = 0x4f4c5231;
+
+        private final Program program;
+        private final File dir;
+        private int hits;
+        private int misses;
+
+        public ResultStore(Program program, File dir) throws IOException {
+            this.program = program;
+            this.dir = dir;
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException(String.format("Failed to create result store %s", dir));
+        }
+
+        public String key(Function func, LocalStateVarDeflatter deflatter) throws Exception {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(String.format("%d:%#x:", deflatter.getVar_size(), deflatter.getVar_init_address_ctor())
+                    .getBytes());
+            Memory mem = this.program.getMemory();
+            for (AddressRange range: func.getBody()) {
+                byte[] bytes = new byte[(int) range.getLength()];
+                mem.getBytes(range.getMinAddress(), bytes);
+                digest.update(range.getMinAddress().toString().getBytes());
+                digest.update(bytes);
+            }
+            StringBuilder ret = new StringBuilder();
+            for (byte b: digest.digest())
+                ret.append(String.format("%02x", b));
+            return ret.toString();
+        }
+
+        // get the stored control flow maps, null if there is none or it cannot be read
+        public ControlFlowMaps load(String key) {
+            File file = new File(this.dir, key);
+            if (!file.isFile()) {
+                this.count(false);
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC)
+                    throw new IOException("bad magic");
+                // relations are not needed for patching
+                in.skipBytes(in.readInt() * (3 * Long.BYTES + Integer.BYTES));
+                int count = in.readInt();
+                ControlFlowMaps ret = new ControlFlowMaps(count);
+                for (int i = 0; i < count; i++)
+                    ret.add(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+                this.count(true);
+                return ret;
+            } catch (Exception e) {
+                log.warn("Failed to read stored result %s: %s", file, e.getMessage());
+                this.count(false);
+                return null;
+            }
+        }
+
+        public void save(String key, ConditionIndex relations, ControlFlowMaps cfg) throws IOException {
+            // write to a temporary file first, readers never see a half written one
+            File tmp = new File(this.dir, key + "." + Thread.currentThread().getId() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(relations.size());
+                for (int i = 0; i < relations.size(); i++) {
+                    out.writeLong(relations.constants[i]);
+                    out.writeLong(relations.target_starts[i]);
+                    out.writeLong(relations.target_stops[i]);
+                    out.writeInt(relations.compare_conditions[i]);
+                }
+                out.writeInt(cfg.size());
+                for (int i = 0; i < cfg.size(); i++) {
+                    out.writeLong(cfg.targetStart(i));
+                    out.writeLong(cfg.targetStop(i));
+                    out.writeLong(cfg.trueStart(i));
+                    out.writeLong(cfg.trueStop(i));
+                    out.writeLong(cfg.falseStart(i));
+                    out.writeLong(cfg.falseStop(i));
                 }
-                addr = addr.add(1);
-                fill_len++;
             }
-            if (DEBUG)
-                printf("Filled %#x with nop, length %d\n", addr.getOffset(), fill_len);
+            if (!tmp.renameTo(new File(this.dir, key)))
+                throw new IOException(String.format("Failed to save result %s", key));
         }
 
-        public void fillNop(Address addr, int size) throws Exception {
-            this.asm.assemble(addr, "NOP\n".repeat(size));
+        private synchronized void count(boolean hit) {
+            if (hit)
+                this.hits++;
+            else
+                this.misses++;
         }
-    }
 
-    abstract class CFGPatcher extends ASMPatcher {
-        ControlFlowMap[] cfg;
-        Listing listing;
+        @Override
+        public synchronized String toString() {
+            return String.format("Result store: %d functions reused, %d analysed", this.hits, this.misses);
+        }
+    }
 
-        CFGPatcher(Program program, ControlFlowMap[] cfg) {
-            super(program);
-            this.cfg = cfg;
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+///////////////////////////////////////////////////// PatchJournal /////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-            this.listing = this.program.getListing();
+/**
+ * PatchJournal: Binary record of applied patches, so that the same result can be applied again (or undone) without
+ * any analysis.
+ *
+ * Format, big endian: magic "OLJ1", then records until EOF, each one is:
+ *   u8 kind (0: from ControlFlowMap, 1: other), utf address space, i64 offset, i32 length, original bytes, new bytes,
+ *   and for kind 0: i64 block start, i64 block stop, i64 true descend, i64 false descend (-1 if lone descend).
+ */
+    class PatchJournal {
+        public static final int MAGIC = 0x4f4c4a31;
+        public static final int KIND_CONTROL_FLOW = 0;
+        public static final int KIND_OTHER = 1;
+
+        private final File file;
+        // opened when the first patch is recorded
+        private DataOutputStream out;
+        private int size;
+
+        public PatchJournal(File file) {
+            this.file = file;
+            this.out = null;
+            this.size = 0;
         }
 
-        abstract String GenUncondBlockEnd(long target_addr);
-        abstract String GenCondBlockEnd(Instruction ins, long true_addr, long false_addr);
-        public void patchAll() throws Exception {
-            for(ControlFlowMap cfg_entry: cfg) {
-                PatchEntry pe = this.patchOne(cfg_entry);
-            }
+        public int size() {
+            return this.size;
         }
 
-        PatchEntry patchOne(ControlFlowMap map) throws Exception {
-            PcodeBlockBasic root = map.target;
-            Instruction to_patch = this.listing.getInstructions(root.getStop(), true).next();
-            String asm_str;
-            Address patch_address = to_patch.getMinAddress();
-            // Unconditional JUMP
-            if (map.falseDescend == null) {
-                long target = map.trueDescend.getStart().getOffset();
-                asm_str = GenUncondBlockEnd(target);
-                byte[] new_machine_code = this.asm.assembleLine(patch_address, asm_str);
-                if(new_machine_code.length > to_patch.getLength()){
-                    throw new Exception(String.format(
-                            "Not enough space to patch \"%s\" in %#x", asm_str, patch_address.getOffset()
-                    ));
-                }
-            } else {
-                // Conditional JUMP
-                long true_desc = map.trueDescend.getStart().getOffset();
-                long false_desc = map.falseDescend.getStart().getOffset();
-                asm_str = GenCondBlockEnd(to_patch, true_desc, false_desc);
+        public void record(PatchEntry entry) throws IOException {
+            if (this.out == null) {
+                this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file)));
+                this.out.writeInt(MAGIC);
             }
-
-            if(asm_str == null) {
-                throw new Exception("Failed to patch conditional jump.");
+            ControlFlowMaps source = entry.source;
+            int map = entry.source_map;
+            this.out.writeByte(source != null ? KIND_CONTROL_FLOW : KIND_OTHER);
+            this.out.writeUTF(entry.address.getAddressSpace().getName());
+            this.out.writeLong(entry.address.getOffset());
+            this.out.writeInt(entry.to_patch.length);
+            this.out.write(entry.original);
+            this.out.write(entry.to_patch);
+            if (source != null) {
+                this.out.writeLong(source.targetStart(map));
+                this.out.writeLong(source.targetStop(map));
+                this.out.writeLong(source.trueStart(map));
+                this.out.writeLong(source.falseStart(map));
             }
-            return patch(patch_address, asm_str);
+            this.size++;
         }
-    }
 
-////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-//////////////////////////////////////////////////// CFGPatcherX86 /////////////////////////////////////////////////////
-////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-
-    class CFGPatcherX86 extends CFGPatcher {
-        public CFGPatcherX86(Program program, ControlFlowMap[] cfg) {
-            super(program, cfg);
+        public void close() throws IOException {
+            if (this.out != null)
+                this.out.close();
         }
 
-        @Override
-        public String GenUncondBlockEnd(long target_addr) {
-            return String.format("JMP %#x", target_addr);
-        }
+        // Apply all patches in the journal to `program` in one transaction, or undo them if `revert`. A later round of
+        // the same run may patch bytes patched before, so records are applied in journal order, or the reverse one to
+        // revert, and each is checked against the bytes left by the ones before it. Nothing is kept if any differs.
+        public void replay(Program program, boolean revert) throws Exception {
+            Memory mem = program.getMemory();
+            Vector<PatchEntry> entries = new Vector<>();
+            Vector<byte[]> expected = new Vector<>();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+                if (in.readInt() != MAGIC)
+                    throw new Exception(String.format("%s is not a patch journal", this.file));
+                while (true) {
+                    int kind = in.read();
+                    if (kind == -1)
+                        break;
+                    AddressSpace space = program.getAddressFactory().getAddressSpace(in.readUTF());
+                    long offset = in.readLong();
+                    byte[] original = new byte[in.readInt()];
+                    byte[] patched = new byte[original.length];
+                    in.readFully(original);
+                    in.readFully(patched);
+                    if (kind == KIND_CONTROL_FLOW)
+                        in.skipBytes(4 * Long.BYTES);
+                    if (space == null)
+                        throw new Exception(String.format("No address space for patch at %#x", offset));
+                    if (original.length == 0)
+                        continue;
+                    entries.add(new PatchEntry(space.getAddress(offset), revert ? original : patched));
+                    expected.add(revert ? patched : original);
+                }
+            }
+            if (revert) {
+                Collections.reverse(entries);
+                Collections.reverse(expected);
+            }
 
-        @Override
-        public String GenCondBlockEnd(Instruction ins, long true_addr, long false_addr) {
-            String ins_mne = ins.getMnemonicString();
-            if (ins_mne.startsWith("CMOV")){
-                return String.format("%s %#x\nJMP %#x\n", ins_mne.replace("CMOV", "J"),
-                        true_addr, false_addr);
+            int transaction = program.startTransaction(revert ? "Revert patch journal" : "Replay patch journal");
+            boolean success = false;
+            try {
+                // records go into one plan until one overlaps it, that one must see the plan written first
+                PatchPlan plan = new PatchPlan(program);
+                AddressSet pending = new AddressSet();
+                int ranges = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    PatchEntry entry = entries.get(i);
+                    Address end = entry.address.add(entry.to_patch.length - 1);
+                    if (pending.intersects(entry.address, end)) {
+                        ranges += plan.apply();
+                        plan = new PatchPlan(program);
+                        pending = new AddressSet();
+                    }
+                    byte[] current = new byte[entry.to_patch.length];
+                    if (mem.getBytes(entry.address, current) != current.length ||
+                            !Arrays.equals(current, expected.get(i)))
+                        throw new Exception(String.format("Bytes at %#x don't match the journal, cannot %s",
+                                entry.address.getOffset(), revert ? "revert" : "replay"));
+                    plan.add(entry);
+                    pending.add(entry.address, end);
+                }
+                ranges += plan.apply();
+                success = true;
+                log.info("%s %d patches in %d ranges", revert ? "Reverted" : "Replayed", entries.size(), ranges);
+            } finally {
+                program.endTransaction(transaction, success);
             }
-            return null;
         }
     }
 
@@ -934,6 +5141,11 @@ public class OllvmSolver extends GhidraScript {
     class PatchEntry {
         Address address;
         byte[] to_patch;
+        // bytes overwritten, filled when the entry is applied
+        byte[] original;
+        // the block end this entry redirects, entry `source_map` of `source`, null if not from CFGPatcher
+        ControlFlowMaps source;
+        int source_map;
 
         public PatchEntry(Address address, byte[] to_patch){
             this.address = address;
@@ -956,91 +5168,121 @@ public class OllvmSolver extends GhidraScript {
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
     class GlobalVarHandler {
-        Vector<Symbol> read_only_global_vars;
+        // verdict of PredicateProgram.classify() on the CBRANCH at `address`
+        record Predicate(Address address, int verdict) {}
 
-        public GlobalVarHandler() {
-            this.read_only_global_vars = new Vector<>();
-            get_all_global_vars();
+        // read-only global vars, built once and shared by all functions
+        final ReadOnlyGlobalIndex index;
+        final PredicateSampler sampler;
 
-            Vector<Symbol> all_data = get_all_global_vars();
-            for (Symbol symbol: all_data) {
-                if (GlobalVarHandler.symbolIsReadonly(symbol))
-                    read_only_global_vars.add(symbol);
-            }
+        public GlobalVarHandler() {
+            this.index = new ReadOnlyGlobalIndex(currentProgram);
+            this.sampler = new PredicateSampler(currentProgram);
         }
 
         public GlobalVarHandler(Vector<Symbol> addrs) {
-            this.read_only_global_vars = addrs;
+            this.index = new ReadOnlyGlobalIndex(currentProgram, addrs);
+            this.sampler = new PredicateSampler(currentProgram);
         }
 
-        public Vector<Symbol> get_all_global_vars() {
-            Vector<Symbol> ret = new Vector<>();
-            for (Symbol symbol: currentProgram.getSymbolTable().getSymbolIterator()) {
-                // remove 0-ref labels
-                if (symbol.getReferenceCount() == 0)
-                    continue;
-                // remove non-label symbols
-                if (!symbol.getSymbolType().toString().equals("Label"))
+        // Find the opaque predicates of `hFunction` without touching the program, it runs on a pool worker.
+        public Vector<Predicate> analyse(HighFunction hFunction) {
+            GlobalVarEvent event = new GlobalVarEvent();
+            event.start(hFunction.getFunction());
+            // a conditional jump split into several blocks by the decompiler is still patched once
+            Set<Address> evaluated = new HashSet<>();
+            // all predicates of the function share one program, memory read by them must be read-only global vars
+            PredicateProgram predicates = new PredicateProgram(this.index);
+            Vector<Address> branches = new Vector<>();
+            Vector<Integer> roots = new Vector<>();
+
+            // only CBRANCH may be an opaque predicate, and it always ends a basic block
+            for (PcodeBlockBasic block: hFunction.getBasicBlocks()) {
+                PcodeOp op = block.getLastOp();
+                if (op == null || op.getOpcode() != PcodeOp.CBRANCH)
                     continue;
-                Data data = currentProgram.getListing().getDataAt(symbol.getAddress());
-                if (data == null) {
+                Address addr = op.getSeqnum().getTarget();
+                if (!evaluated.add(addr))
                     continue;
-                }
-                if (data.isPointer() || data.isArray() || data.isStructure()) {
+
+                // CBRANCH has 2 inputs, [0] is jump target, [1] is condition
+                int root = predicates.compile(op.getInput(1));
+                if (root < 0)
                     continue;
+                branches.add(addr);
+                roots.add(root);
+            }
+            log.debug("%d predicates compiled into %d nodes", roots.size(), predicates.size());
+
+            // constants of the predicates compiled, in the order of their branches
+            Vector<long[]> root_constants = new Vector<>();
+            Set<Long> pooled = new LinkedHashSet<>();
+            for (int root: roots) {
+                long[] constants = predicates.constants(root);
+                root_constants.add(constants);
+                for (long constant: constants)
+                    pooled.add(constant);
+            }
+            long[] constants = pooled.stream().mapToLong(Long::longValue).toArray();
+            Set<Long> tried = new HashSet<>();
+            for (int i = 0; i < PredicateSampler.sampled(constants); i++)
+                tried.add(constants[i]);
+
+            // try every predicate with many values of the global vars, only the ones never changing are opaque
+            long[][] samples = this.sampler.sample(predicates.leaves, constants);
+            predicates.run(samples, samples.length == 0 ? 1 : samples[0].length);
+            Vector<Predicate> ret = new Vector<>();
+            for (int i = 0; i < roots.size(); i++) {
+                int verdict = predicates.classify(roots.get(i));
+                // `x == c` is false in every lane unless c was tried, such a predicate cannot be told opaque
+                if (verdict != PredicateProgram.NOT_CONSTANT && !allTried(root_constants.get(i), tried)) {
+                    log.debug("Predicate at %s compares with constants not sampled, left as is", branches.get(i));
+                    verdict = PredicateProgram.NOT_CONSTANT;
                 }
-                ret.add(symbol);
+                Predicate predicate = new Predicate(branches.get(i), verdict);
+                if (predicate.verdict() != PredicateProgram.NOT_CONSTANT)
+                    event.opaque_predicates++;
+                ret.add(predicate);
             }
+            event.predicates = roots.size();
+            metrics.commit(event);
             return ret;
         }
 
-        public static boolean symbolIsReadonly(Symbol sym) {
-            Reference[] refs = sym.getReferences();
-            boolean is_readonly = true;
-            for (Reference ref: refs) {
-                if (!(ref.isExternalReference() || ref.getReferenceType().isRead())) {
-                    is_readonly = false;
-                    break;
-                }
-            }
-            return is_readonly;
+        private static boolean allTried(long[] constants, Set<Long> tried) {
+            for (long constant: constants)
+                if (!tried.contains(constant))
+                    return false;
+            return true;
         }
 
-        public void deobfuscate(HighFunction hFunction) throws Exception {
-            Function function = hFunction.getFunction();
-
-            Listing listing = currentProgram.getListing();
-
-            for (Address addr: function.getBody().getAddresses(true)) {
-                Instruction inst = listing.getInstructionAt(addr);
-                if (inst == null)
-                    continue;
-                for (Iterator<PcodeOpAST> it = hFunction.getPcodeOps(addr); it.hasNext(); ) {
-                    PcodeOpAST op = it.next();
-
-                    if (op.getOpcode() != PcodeOp.CBRANCH)
-                        continue;
-                    Varnode condition = op.getInput(1);
-                    ArithmeticNode def_tree_root = new ArithmeticNode(condition);
-                    if (!def_tree_root.buildBranches())
-                        continue;
-
-                    if (!def_tree_root.isAllArgumentsConstantOrMemory())
+        // Patch every predicate of `function` whose verdict is constant, on the thread which writes the program.
+        public void patch(Function function, Vector<Predicate> predicates) throws Exception {
+            ASMPatcher patcher = new ASMPatcher(currentProgram);
+            PatchPlan plan = new PatchPlan(currentProgram);
+            PatchEvent patch_event = new PatchEvent();
+            patch_event.start(function);
+            try {
+                for (Predicate predicate: predicates) {
+                    Address addr = predicate.address();
+                    if (predicate.verdict() == PredicateProgram.NOT_CONSTANT) {
+                        log.trace("Predicate at %s depends on global vars, left as is", addr);
                         continue;
-
-                    long exp_value = def_tree_root.doCalculation();
-
-                    if (DEBUG) {
-                        printf("Calculation result: %#x\n", exp_value);
                     }
-                    printf("Patching: %#x\n", addr.getOffset());
 
-                    doPatch(addr, exp_value != 0);
+                    log.debug("Patching predicate at %s, always %s", addr,
+                            predicate.verdict() == PredicateProgram.ALWAYS_TRUE);
+
+                    doPatch(patcher, plan, addr, predicate.verdict() == PredicateProgram.ALWAYS_TRUE);
                 }
+                plan.apply();
+            } finally {
+                patcher.count(patch_event, plan);
+                metrics.commit(patch_event);
             }
         }
 
-        public void doPatch(Address addr, boolean condition) throws Exception {
+        public void doPatch(ASMPatcher patcher, PatchPlan plan, Address addr, boolean condition) throws Exception {
             Instruction inst = currentProgram.getListing().getInstructionAt(addr);
             if (inst == null)
                 return;
@@ -1057,194 +5299,821 @@ public class OllvmSolver extends GhidraScript {
                 patched = "JMP " + j_target;
             else
                 patched = "NOP";
-            ASMPatcher patcher = new ASMPatcher(currentProgram);
-            patcher.patch(addr, patched);
+            plan.add(patcher.patch(addr, patched));
         }
     }
 
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-//////////////////////////////////////////////////// ArithmeticTree ////////////////////////////////////////////////////
+///////////////////////////////////////////////// ReadOnlyGlobalIndex //////////////////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    /**
-     * ArithmeticNode: Used to define an arithmetic calculation process.
-     * It's designed as an upside-down tree, the root node is at the bottom, representing final answer.
-     * Every node is a VarNode or a value. If all VarNode has a certain value, we can get our answer.
-     */
-    class ArithmeticNode {
-        public static final int INTERMEDIATE_VARNODE = 0;
-        public static final int SINGLE_VARNODE = 1;
-        public static final int CONSTANT = 2;
-        private int node_type;
-        private Varnode node;
-        private int opcode;
-        private ArithmeticNode input1;
-        private ArithmeticNode input2;
-        private Long value;             // the answer
-
-        public ArithmeticNode(Varnode node) {
-            this.node = node;
-            this.node_type = INTERMEDIATE_VARNODE;
-            if (this.node.isConstant())
-                this.node_type = CONSTANT;
+/**
+ * ReadOnlyGlobalIndex: Labelled plain data (not pointer, array or structure) that no reference writes into.
+ * It's built in one sweep over references into non-executable blocks, and kept up to date by PatchPlan as patched code
+ * drops its references and the disassembled one brings new ones.
+ */
+    class ReadOnlyGlobalIndex {
+        private final Program program;
+        // referenced plain globals, whether written or not
+        private final AddressSet globals;
+        private final AddressSet readonly;
+        // number of references to a global which neither are external nor read it, only globals written are kept
+        private final Map<Address, Integer> writes;
+        // given by user, never updated
+        private final boolean fixed;
+
+        public ReadOnlyGlobalIndex(Program program) {
+            this.program = program;
+            this.globals = new AddressSet();
+            this.readonly = new AddressSet();
+            this.writes = new HashMap<>();
+            this.fixed = false;
+
+            AddressSet data_blocks = new AddressSet();
+            for (MemoryBlock block: program.getMemory().getBlocks())
+                if (!block.isExecute())
+                    data_blocks.add(block.getStart(), block.getEnd());
+            ReferenceManager refs = program.getReferenceManager();
+            for (Address to: refs.getReferenceDestinationIterator(data_blocks, true)) {
+                if (!this.isPlainGlobal(to))
+                    continue;
+                this.globals.add(to);
+                for (Reference ref: refs.getReferencesTo(to))
+                    this.count(ref, 1);
+                if (!this.writes.containsKey(to))
+                    this.readonly.add(to);
+            }
         }
 
-        // get all definition process of this varnode, you will get a tree
-        public boolean buildBranches() {
-            if (this.node == null)
-                return false;
-            else if (this.node_type == CONSTANT || this.node_type == SINGLE_VARNODE)
-                return true;
-            PcodeOp source_op = this.node.getDef();
-            assert(source_op.getOutput().equals(this.node));
-            opcode = source_op.getOpcode();
-
-            if (opcode == PcodeOp.MULTIEQUAL || opcode == PcodeOp.INDIRECT) {
-                node_type = SINGLE_VARNODE;
-                return true;
-            } else if (opcode == PcodeOp.CALL)
-                return false;
+        public ReadOnlyGlobalIndex(Program program, Vector<Symbol> symbols) {
+            this.program = program;
+            this.globals = new AddressSet();
+            this.readonly = new AddressSet();
+            this.writes = new HashMap<>();
+            this.fixed = true;
+            for (Symbol symbol: symbols) {
+                this.globals.add(symbol.getAddress());
+                this.readonly.add(symbol.getAddress());
+            }
+        }
 
-            input1 = source_op.getInputs().length >= 1 ? new ArithmeticNode(source_op.getInput(0)) : null;
-            input2 = source_op.getInputs().length >= 2 ? new ArithmeticNode(source_op.getInput(1)) : null;
+        private boolean isPlainGlobal(Address addr) {
+            Symbol symbol = this.program.getSymbolTable().getPrimarySymbol(addr);
+            if (symbol == null || !symbol.getSymbolType().toString().equals("Label"))
+                return false;
+            Data data = this.program.getListing().getDataAt(addr);
+            return data != null && !data.isPointer() && !data.isArray() && !data.isStructure();
+        }
 
-            // If this varnode is defined by COPY, then the input of COPY is one of the final source, end recursion
-            if (opcode == PcodeOp.COPY) {
-                assert(input1 != null && input2 == null);
-                if (input1.node.isConstant())
-                    input1.node_type = CONSTANT;
-                else if (input1.node.isAddress())
-                    input1.node_type = SINGLE_VARNODE;
-                else
-                    return false;
-                return true;
+        private void count(Reference ref, int delta) {
+            if (ref.isExternalReference() || ref.getReferenceType().isRead())
+                return;
+            Address to = ref.getToAddress();
+            if (!this.globals.contains(to))
+                return;
+            int count = this.writes.getOrDefault(to, 0) + delta;
+            if (count > 0) {
+                this.writes.put(to, count);
+                this.readonly.delete(to, to);
+            } else {
+                this.writes.remove(to);
+                this.readonly.add(to);
             }
+        }
 
-            if (input1 != null)
-                if (!input1.buildBranches())
-                    return false;
-            if (input2 != null)
-                return input2.buildBranches();
-            return true;
+        // Count references from `code` in (delta = 1) or out (delta = -1), called around patching it. Pool workers
+        // look up the index meanwhile, so both are synchronized.
+        public synchronized void update(AddressSetView code, int delta) {
+            if (this.fixed)
+                return;
+            ReferenceManager refs = this.program.getReferenceManager();
+            for (Address from: refs.getReferenceSourceIterator(code, true))
+                for (Reference ref: refs.getReferencesFrom(from))
+                    this.count(ref, delta);
         }
 
-        // get all arguments that determines the value of this varnode.
-        //
-        // For example: this.node = (a * (a+1) - 2) / (b - c), then you will get [a, b, c, 1, -2]
-        public Vector<Varnode> getAllArithmeticArguments() {
-            Vector<Varnode> ret = new Vector<>();
-            if (this.input1 != null)
-                input1.getAllArithmeticArguments(ret);
-            if (this.input2 != null)
-                input2.getAllArithmeticArguments(ret);
+        public synchronized boolean contains(Address addr) {
+            return this.readonly.contains(addr);
+        }
+
+        public synchronized long size() {
+            return this.readonly.getNumAddresses();
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+/////////////////////////////////////////////////// PredicateProgram ///////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * PredicateProgram: Definition trees of branch conditions lowered into one flat program.
+     * Every node is an opcode whose operands are earlier nodes, so running nodes in order evaluates all predicates at
+     * once, each node only one time. Identical subexpressions are hash-consed into one node. Every result is masked
+     * to the size of its varnode, and signed opcodes sign-extend their operands from that size.
+     */
+    class PredicateProgram {
+        // leaf whose value is given to run(), it's a read-only global var
+        public static final int INPUT = -1;
+        public static final int CONSTANT = -2;
+        // results of classify()
+        public static final int NOT_CONSTANT = -1;
+        public static final int ALWAYS_FALSE = 0;
+        public static final int ALWAYS_TRUE = 1;
+
+        record NodeKey(int opcode, int size, int in0, int in1, long constant) {}
+
+        private int[] opcodes;
+        private int[] sizes;
+        // operand nodes, -1 if not used
+        private int[] in0;
+        private int[] in1;
+        // value of CONSTANT, index into leaves of INPUT
+        private long[] constants;
+        private int count;
+        private final Map<NodeKey, Integer> interned;
+        // varnodes compiled before, -1 if they cannot be evaluated
+        private final Map<Varnode, Integer> compiled;
+        // varnodes of INPUT nodes, the i-th one takes inputs[i] of run()
+        public final Vector<Varnode> leaves;
+        private final ReadOnlyGlobalIndex index;
+
+        // results of last run, lane by lane of each node
+        private long[] results;
+        private int lanes;
+        // set if a node divides by 0 in any lane, or any operand of it does
+        private boolean[] failed;
+
+        public PredicateProgram(ReadOnlyGlobalIndex index) {
+            this.opcodes = new int[64];
+            this.sizes = new int[64];
+            this.in0 = new int[64];
+            this.in1 = new int[64];
+            this.constants = new long[64];
+            this.interned = new HashMap<>();
+            this.compiled = new HashMap<>();
+            this.leaves = new Vector<>();
+            this.index = index;
+        }
+
+        public int size() {
+            return this.count;
+        }
+
+        // Lower the definition tree of `varnode` into nodes, and get the node of it. Return -1 if it depends on
+        // anything other than constants and read-only global vars, or uses an opcode not supported.
+        public int compile(Varnode varnode) {
+            Integer known = this.compiled.get(varnode);
+            if (known != null)
+                return known;
+            int ret = this.compileUncached(varnode);
+            this.compiled.put(varnode, ret);
             return ret;
         }
 
-        private void getAllArithmeticArguments(Vector<Varnode> nodes) {
-            if (this.node_type != INTERMEDIATE_VARNODE) {
-                nodes.add(this.node);
-                return;
+        private int compileUncached(Varnode varnode) {
+            int size = varnode.getSize();
+            if (size <= 0 || size > 8)
+                return -1;
+            if (varnode.isConstant())
+                return this.intern(CONSTANT, size, -1, -1, mask(varnode.getOffset(), size));
+
+            PcodeOp def = varnode.getDef();
+            if (def == null || def.getOpcode() == PcodeOp.MULTIEQUAL || def.getOpcode() == PcodeOp.INDIRECT) {
+                // value from outside of the tree, only known for a global var no one writes
+                if (!varnode.isAddress() || this.index == null || !this.index.contains(varnode.getAddress()))
+                    return -1;
+                NodeKey key = new NodeKey(INPUT, size, -1, -1, varnode.getAddress().getOffset());
+                Integer leaf = this.interned.get(key);
+                if (leaf != null)
+                    return leaf;
+                this.interned.put(key, this.count);
+                this.leaves.add(varnode);
+                return this.add(INPUT, size, -1, -1, this.leaves.size() - 1);
             }
 
-            if (this.input1 != null)
-                input1.getAllArithmeticArguments(nodes);
-            if (this.input2 != null)
-                input2.getAllArithmeticArguments(nodes);
+            int opcode = def.getOpcode();
+            switch (opcode) {
+                case PcodeOp.COPY, PcodeOp.CAST -> {
+                    return this.compile(def.getInput(0));
+                }
+                case PcodeOp.INT_ZEXT, PcodeOp.INT_SEXT, PcodeOp.INT_NEGATE, PcodeOp.INT_2COMP, PcodeOp.BOOL_NEGATE,
+                        PcodeOp.POPCOUNT -> {
+                    int a = this.compile(def.getInput(0));
+                    return a < 0 ? -1 : this.intern(opcode, size, a, -1, 0);
+                }
+                case PcodeOp.INT_ADD, PcodeOp.INT_SUB, PcodeOp.INT_MULT, PcodeOp.INT_DIV, PcodeOp.INT_SDIV,
+                        PcodeOp.INT_REM, PcodeOp.INT_SREM, PcodeOp.INT_AND, PcodeOp.INT_OR, PcodeOp.INT_XOR,
+                        PcodeOp.INT_LEFT, PcodeOp.INT_RIGHT, PcodeOp.INT_SRIGHT, PcodeOp.INT_EQUAL,
+                        PcodeOp.INT_NOTEQUAL, PcodeOp.INT_LESS, PcodeOp.INT_LESSEQUAL, PcodeOp.INT_SLESS,
+                        PcodeOp.INT_SLESSEQUAL, PcodeOp.INT_CARRY, PcodeOp.INT_SCARRY, PcodeOp.INT_SBORROW,
+                        PcodeOp.BOOL_AND, PcodeOp.BOOL_OR, PcodeOp.BOOL_XOR, PcodeOp.PIECE, PcodeOp.SUBPIECE -> {
+                    int a = this.compile(def.getInput(0));
+                    int b = a < 0 ? -1 : this.compile(def.getInput(1));
+                    if (b < 0)
+                        return -1;
+                    // same operands in any order make the same node
+                    if (commutative(opcode) && a > b)
+                        return this.intern(opcode, size, b, a, 0);
+                    return this.intern(opcode, size, a, b, 0);
+                }
+                default -> {
+                    return -1;
+                }
+            }
         }
 
-        public boolean isAllArgumentsConstantOrMemory() {
-            Vector<Varnode> nodes = getAllArithmeticArguments();
-            for (Varnode node: nodes) {
-                if (!node.isConstant() && !node.getAddress().getAddressSpace().isMemorySpace())
-                    return false;
+        private static boolean commutative(int opcode) {
+            return switch (opcode) {
+                case PcodeOp.INT_ADD, PcodeOp.INT_MULT, PcodeOp.INT_AND, PcodeOp.INT_OR, PcodeOp.INT_XOR,
+                        PcodeOp.INT_EQUAL, PcodeOp.INT_NOTEQUAL, PcodeOp.BOOL_AND, PcodeOp.BOOL_OR,
+                        PcodeOp.BOOL_XOR -> true;
+                default -> false;
+            };
+        }
+
+        private int intern(int opcode, int size, int a, int b, long constant) {
+            NodeKey key = new NodeKey(opcode, size, a, b, constant);
+            Integer node = this.interned.get(key);
+            if (node != null)
+                return node;
+            this.interned.put(key, this.count);
+            return this.add(opcode, size, a, b, constant);
+        }
+
+        private int add(int opcode, int size, int a, int b, long constant) {
+            if (this.count == this.opcodes.length) {
+                int capacity = this.count * 2;
+                this.opcodes = Arrays.copyOf(this.opcodes, capacity);
+                this.sizes = Arrays.copyOf(this.sizes, capacity);
+                this.in0 = Arrays.copyOf(this.in0, capacity);
+                this.in1 = Arrays.copyOf(this.in1, capacity);
+                this.constants = Arrays.copyOf(this.constants, capacity);
             }
-            return true;
+            this.opcodes[this.count] = opcode;
+            this.sizes[this.count] = size;
+            this.in0[this.count] = a;
+            this.in1[this.count] = b;
+            this.constants[this.count] = constant;
+            return this.count++;
         }
 
-        // in doCalculation, every varnode will be regarded as 0
-        public long doCalculation() throws Exception {
-            if (this.node_type == CONSTANT) {
-                assert this.node.isConstant();
-                return this.node.getOffset();
-            } else if (this.node_type == SINGLE_VARNODE) {
-                return 0;
-            } else {
-                switch (this.opcode) {
-                    case PcodeOp.BOOL_AND -> {
-                        return (this.input1.doCalculation() != 0) && (this.input2.doCalculation() != 0) ? 1 : 0;
+        static long mask(long value, int size) {
+            return size >= 8 ? value : value & ((1L << (size * 8)) - 1);
+        }
+
+        static long signed(long value, int size) {
+            int shift = 64 - size * 8;
+            return value << shift >> shift;
+        }
+
+        // Evaluate all nodes over `lanes` sets of leaf values at once, inputs[i][lane] is the value of leaves[i] in
+        // that lane. All leaves are 0 if `inputs` is null. Each opcode runs a plain loop over lanes, which the JIT
+        // compiles into SIMD instructions where it can.
+        public void run(long[][] inputs, int lanes) {
+            if (this.results == null || this.results.length < this.count * lanes) {
+                this.results = new long[this.count * lanes];
+                this.failed = new boolean[this.count];
+            }
+            this.lanes = lanes;
+            long[] r = this.results;
+            for (int i = 0; i < this.count; i++) {
+                int opcode = this.opcodes[i];
+                int size = this.sizes[i];
+                int o = i * lanes;
+                this.failed[i] = false;
+                if (opcode == CONSTANT) {
+                    Arrays.fill(r, o, o + lanes, this.constants[i]);
+                    continue;
+                }
+                if (opcode == INPUT) {
+                    if (inputs == null)
+                        Arrays.fill(r, o, o + lanes, 0);
+                    else
+                        System.arraycopy(inputs[(int) this.constants[i]], 0, r, o, lanes);
+                    this.mask(o, size);
+                    continue;
+                }
+                int x = this.in0[i];
+                int y = this.in1[i];
+                int a = x * lanes;
+                int b = y < 0 ? a : y * lanes;
+                // operand size, comparisons and carries output a single byte
+                int a_size = this.sizes[x];
+                int bits = a_size * 8;
+                boolean fail = this.failed[x] || (y >= 0 && this.failed[y]);
+                switch (opcode) {
+                    case PcodeOp.INT_ZEXT -> System.arraycopy(r, a, r, o, lanes);
+                    case PcodeOp.INT_SEXT -> {
+                        for (int l = 0; l < lanes; l++) r[o + l] = signed(r[a + l], a_size);
                     }
-                    case PcodeOp.BOOL_OR -> {
-                        return (this.input1.doCalculation() != 0) || (this.input2.doCalculation() != 0) ? 1 : 0;
+                    case PcodeOp.INT_NEGATE -> {
+                        for (int l = 0; l < lanes; l++) r[o + l] = ~r[a + l];
                     }
-                    case PcodeOp.BOOL_XOR -> {
-                        return (this.input1.doCalculation() != 0) ^ (this.input2.doCalculation() != 0) ? 1 : 0;
+                    case PcodeOp.INT_2COMP -> {
+                        for (int l = 0; l < lanes; l++) r[o + l] = -r[a + l];
                     }
                     case PcodeOp.BOOL_NEGATE -> {
-                        return this.input1.doCalculation() != 0 ? 0 : 1;
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] == 0 ? 1 : 0;
+                    }
+                    case PcodeOp.POPCOUNT -> {
+                        for (int l = 0; l < lanes; l++) r[o + l] = Long.bitCount(r[a + l]);
                     }
                     case PcodeOp.INT_ADD -> {
-                        return this.input1.doCalculation() + this.input2.doCalculation();
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] + r[b + l];
                     }
                     case PcodeOp.INT_SUB -> {
-                        return this.input1.doCalculation() - this.input2.doCalculation();
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] - r[b + l];
                     }
                     case PcodeOp.INT_MULT -> {
-                        return this.input1.doCalculation() * this.input2.doCalculation();
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] * r[b + l];
                     }
-                    case PcodeOp.INT_DIV -> {
-                        return this.input1.doCalculation() / this.input2.doCalculation();
+                    case PcodeOp.INT_AND -> {
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] & r[b + l];
                     }
-                    case PcodeOp.INT_REM -> {
-                        return this.input1.doCalculation() % this.input2.doCalculation();
+                    case PcodeOp.INT_OR -> {
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] | r[b + l];
                     }
-                    case PcodeOp.INT_2COMP -> {
-                        return -this.input1.doCalculation();
+                    case PcodeOp.INT_XOR -> {
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] ^ r[b + l];
+                    }
+                    case PcodeOp.INT_DIV, PcodeOp.INT_REM, PcodeOp.INT_SDIV, PcodeOp.INT_SREM -> {
+                        for (int l = 0; l < lanes; l++) {
+                            long u = r[a + l], v = r[b + l];
+                            if (v == 0) {
+                                fail = true;
+                                r[o + l] = 0;
+                                continue;
+                            }
+                            r[o + l] = switch (opcode) {
+                                case PcodeOp.INT_DIV -> Long.divideUnsigned(u, v);
+                                case PcodeOp.INT_REM -> Long.remainderUnsigned(u, v);
+                                case PcodeOp.INT_SDIV -> signed(u, a_size) / signed(v, a_size);
+                                default -> signed(u, a_size) % signed(v, a_size);
+                            };
+                        }
+                    }
+                    // shift amounts are unsigned, shifting all bits out leaves 0 or the sign
+                    case PcodeOp.INT_LEFT -> {
+                        for (int l = 0; l < lanes; l++)
+                            r[o + l] = Long.compareUnsigned(r[b + l], size * 8L) >= 0 ? 0 : r[a + l] << r[b + l];
+                    }
+                    case PcodeOp.INT_RIGHT -> {
+                        for (int l = 0; l < lanes; l++)
+                            r[o + l] = Long.compareUnsigned(r[b + l], bits) >= 0 ? 0 : r[a + l] >>> r[b + l];
+                    }
+                    case PcodeOp.INT_SRIGHT -> {
+                        for (int l = 0; l < lanes; l++)
+                            r[o + l] = signed(r[a + l], a_size) >> (Long.compareUnsigned(r[b + l], 63) > 0 ? 63 :
+                                    r[b + l]);
                     }
                     case PcodeOp.INT_EQUAL -> {
-                        return this.input1.doCalculation() == this.input2.doCalculation() ? 1 : 0;
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] == r[b + l] ? 1 : 0;
                     }
                     case PcodeOp.INT_NOTEQUAL -> {
-                        return this.input1.doCalculation() != this.input2.doCalculation() ? 1 : 0;
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] != r[b + l] ? 1 : 0;
                     }
                     case PcodeOp.INT_LESS -> {
-                        return Long.compareUnsigned(this.input1.doCalculation(), this.input2.doCalculation()) < 0
-                                ? 1 : 0;
-                    }
-                    case PcodeOp.INT_SLESS -> {
-                        return this.input1.doCalculation() < this.input2.doCalculation() ? 1 : 0;
+                        for (int l = 0; l < lanes; l++) r[o + l] = Long.compareUnsigned(r[a + l], r[b + l]) < 0 ? 1 : 0;
                     }
                     case PcodeOp.INT_LESSEQUAL -> {
-                        return Long.compareUnsigned(this.input1.doCalculation(), this.input2.doCalculation()) <= 0
-                                ? 1 : 0;
+                        for (int l = 0; l < lanes; l++)
+                            r[o + l] = Long.compareUnsigned(r[a + l], r[b + l]) <= 0 ? 1 : 0;
+                    }
+                    case PcodeOp.INT_SLESS -> {
+                        for (int l = 0; l < lanes; l++)
+                            r[o + l] = signed(r[a + l], a_size) < signed(r[b + l], a_size) ? 1 : 0;
                     }
                     case PcodeOp.INT_SLESSEQUAL -> {
-                        return this.input1.doCalculation() <= this.input2.doCalculation() ? 1 : 0;
+                        for (int l = 0; l < lanes; l++)
+                            r[o + l] = signed(r[a + l], a_size) <= signed(r[b + l], a_size) ? 1 : 0;
                     }
-                    case PcodeOp.INT_AND -> {
-                        return this.input1.doCalculation() & this.input2.doCalculation();
+                    case PcodeOp.INT_CARRY -> {
+                        for (int l = 0; l < lanes; l++)
+                            r[o + l] = Long.compareUnsigned(mask(r[a + l] + r[b + l], a_size), r[a + l]) < 0 ? 1 : 0;
                     }
-                    case PcodeOp.INT_OR -> {
-                        return this.input1.doCalculation() | this.input2.doCalculation();
+                    case PcodeOp.INT_SCARRY -> {
+                        for (int l = 0; l < lanes; l++) {
+                            long sa = signed(r[a + l], a_size), sb = signed(r[b + l], a_size);
+                            long sr = signed(r[a + l] + r[b + l], a_size);
+                            r[o + l] = ((sa ^ sr) & (sb ^ sr)) < 0 ? 1 : 0;
+                        }
                     }
-                    case PcodeOp.INT_XOR -> {
-                        return this.input1.doCalculation() ^ this.input2.doCalculation();
+                    case PcodeOp.INT_SBORROW -> {
+                        for (int l = 0; l < lanes; l++) {
+                            long sa = signed(r[a + l], a_size), sb = signed(r[b + l], a_size);
+                            long sr = signed(r[a + l] - r[b + l], a_size);
+                            r[o + l] = ((sa ^ sb) & (sa ^ sr)) < 0 ? 1 : 0;
+                        }
                     }
-                    case PcodeOp.INT_NEGATE -> {
-                        return ~this.input1.doCalculation();
+                    case PcodeOp.BOOL_AND -> {
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] != 0 && r[b + l] != 0 ? 1 : 0;
                     }
-                    case PcodeOp.INT_LEFT -> {
-                        return this.input1.doCalculation() << this.input2.doCalculation();
+                    case PcodeOp.BOOL_OR -> {
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] != 0 || r[b + l] != 0 ? 1 : 0;
                     }
-                    case PcodeOp.INT_RIGHT -> {
-                        return this.input1.doCalculation() >> this.input2.doCalculation();
+                    case PcodeOp.BOOL_XOR -> {
+                        for (int l = 0; l < lanes; l++) r[o + l] = (r[a + l] != 0) ^ (r[b + l] != 0) ? 1 : 0;
                     }
-                    case PcodeOp.INT_SRIGHT -> {
-                        return this.input1.doCalculation() >>> this.input2.doCalculation();
+                    case PcodeOp.PIECE -> {
+                        int low_bits = this.sizes[y] * 8;
+                        for (int l = 0; l < lanes; l++) r[o + l] = r[a + l] << low_bits | r[b + l];
+                    }
+                    case PcodeOp.SUBPIECE -> {
+                        for (int l = 0; l < lanes; l++)
+                            r[o + l] = Long.compareUnsigned(r[b + l], 8) >= 0 ? 0 : r[a + l] >>> (r[b + l] * 8);
+                    }
+                    default -> fail = true;
+                }
+                this.mask(o, size);
+                this.failed[i] = fail;
+            }
+        }
+
+        private void mask(int offset, int size) {
+            if (size >= 8)
+                return;
+            long m = (1L << (size * 8)) - 1;
+            for (int l = 0; l < this.lanes; l++)
+                this.results[offset + l] &= m;
+        }
+
+        // ALWAYS_TRUE or ALWAYS_FALSE if `node` is so in every lane of last run, otherwise NOT_CONSTANT
+        public int classify(int node) {
+            if (this.failed[node])
+                return NOT_CONSTANT;
+            int o = node * this.lanes;
+            boolean first = this.results[o] != 0;
+            for (int l = 1; l < this.lanes; l++)
+                if ((this.results[o + l] != 0) != first)
+                    return NOT_CONSTANT;
+            return first ? ALWAYS_TRUE : ALWAYS_FALSE;
+        }
+
+        // distinct values of CONSTANT nodes in the tree of `root`, constants left by a tree failing to compile are not
+        // in any of them
+        public long[] constants(int root) {
+            boolean[] reached = new boolean[root + 1];
+            reached[root] = true;
+            Set<Long> ret = new LinkedHashSet<>();
+            // operands are always earlier nodes, one backward pass reaches the whole tree
+            for (int i = root; i >= 0; i--) {
+                if (!reached[i])
+                    continue;
+                if (this.opcodes[i] == CONSTANT)
+                    ret.add(this.constants[i]);
+                if (this.in0[i] >= 0)
+                    reached[this.in0[i]] = true;
+                if (this.in1[i] >= 0)
+                    reached[this.in1[i]] = true;
+            }
+            return ret.stream().mapToLong(Long::longValue).toArray();
+        }
+
+        public long value(int node, int lane) {
+            return this.results[node * this.lanes + lane];
+        }
+    }
+
+    /**
+     * PredicateSampler: Values of read-only global vars tried by PredicateProgram, one set in each lane.
+     * The first lane holds what the program really stores there (0 if uninitialized), then come edge cases, constants
+     * the predicates compare with and their neighbours, and random numbers. A predicate is only regarded as opaque if
+     * it gives the same answer in all lanes.
+     */
+    class PredicateSampler {
+        public static final int RANDOM_LANES = 32;
+        // constants of predicates tried at most, each one takes 3 lanes
+        public static final int MAX_CONSTANTS = 256;
+        private static final long[] EDGES = {0, 1, 2, 3, 7, 10, -1, -2, 0x5555555555555555L, 0xaaaaaaaaaaaaaaaaL};
+
+        private final Memory mem;
+
+        public PredicateSampler(Program program) {
+            this.mem = program.getMemory();
+        }
+
+        // number of leading `constants` tried by sample(), the rest are not
+        public static int sampled(long[] constants) {
+            return Math.min(constants.length, MAX_CONSTANTS);
+        }
+
+        // ret[i][lane] is the value of leaves[i] in that lane, all leaves have the same number of lanes
+        public long[][] sample(Vector<Varnode> leaves, long[] constants) {
+            int used = sampled(constants);
+            int lanes_count = 1 + EDGES.length + 2 + used * 3 + RANDOM_LANES;
+            long[][] ret = new long[leaves.size()][lanes_count];
+            for (int i = 0; i < leaves.size(); i++) {
+                Varnode leaf = leaves.get(i);
+                long[] lanes = ret[i];
+                int bits = leaf.getSize() * 8;
+                int l = 0;
+                lanes[l++] = this.read(leaf);
+                for (long edge: EDGES)
+                    lanes[l++] = edge;
+                // signed minimum and maximum of its size
+                lanes[l++] = 1L << (bits - 1);
+                lanes[l++] = (1L << (bits - 1)) - 1;
+                // `x == c` or `x < c` is only caught around c
+                for (int j = 0; j < used; j++) {
+                    lanes[l++] = constants[j] - 1;
+                    lanes[l++] = constants[j];
+                    lanes[l++] = constants[j] + 1;
+                }
+                // seeded by address, so that every run tries the same values
+                SplittableRandom random = new SplittableRandom(leaf.getAddress().getOffset());
+                while (l < lanes_count)
+                    lanes[l++] = random.nextLong();
+            }
+            return ret;
+        }
+
+        private long read(Varnode leaf) {
+            try {
+                return switch (leaf.getSize()) {
+                    case 1 -> this.mem.getByte(leaf.getAddress());
+                    case 2 -> this.mem.getShort(leaf.getAddress());
+                    case 4 -> this.mem.getInt(leaf.getAddress());
+                    case 8 -> this.mem.getLong(leaf.getAddress());
+                    default -> 0;
+                };
+            } catch (MemoryAccessException e) {
+                // uninitialized memory, like .bss
+                return 0;
+            }
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////////////////////// SyntheticFlattening /////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * SyntheticFlattening: Generator of flattened functions as PcodeSnapshots, for CoreBenchmark.
+ * The entry block initializes state var, the head merges it with all new values and a chain of compare blocks jumps to
+ * the real block of each state. New values are merged by nested MULTIEQUALs of FANIN inputs before reaching the head.
+ * One real block of 10 chooses between two states with a CBRANCH, and another one with a CMOVxx selector block.
+ */
+    static class SyntheticFlattening {
+        public static final int FANIN = 8;
+        public static final long BASE = 0x400000;
+        public static final long BLOCK_SIZE = 0x20;
+        // spaces of generated varnodes
+        private static final int CONST = 0, UNIQUE = 1;
+
+        private final Vector<long[]> varnodes = new Vector<>();
+        // ops of each block, {opcode, output, inputs...}
+        private final Vector<Vector<int[]>> blocks = new Vector<>();
+        private final Vector<int[]> edges = new Vector<>();
+        private final Vector<int[]> branches = new Vector<>();
+        private final BitSet cmov = new BitSet();
+
+        private int block() {
+            this.blocks.add(new Vector<>());
+            return this.blocks.size() - 1;
+        }
+
+        private int varnode(int space, long offset, int size) {
+            this.varnodes.add(new long[] {space, offset, size});
+            return this.varnodes.size() - 1;
+        }
+
+        // add an op to the end of `block` and return its output, if any
+        private int op(int block, int opcode, int output_size, int... inputs) {
+            int output = output_size == 0 ? -1 : this.varnode(UNIQUE, this.varnodes.size() * 0x10L, output_size);
+            int[] op = new int[inputs.length + 2];
+            op[0] = opcode;
+            op[1] = output;
+            System.arraycopy(inputs, 0, op, 2, inputs.length);
+            this.blocks.get(block).add(op);
+            return output;
+        }
+
+        private void edge(int from, int to) {
+            this.edges.add(new int[] {from, to});
+        }
+
+        // a block ending with CBRANCH, jumping to `taken` when `condition` is true
+        private void branch(int block, int condition, int taken, int fallthrough) {
+            this.op(block, PcodeOp.CBRANCH, 0, this.varnode(CONST, 0, 8), condition);
+            this.branches.add(new int[] {block, taken, fallthrough});
+            this.edge(block, fallthrough);
+            this.edge(block, taken);
+        }
+
+        // Generate a function of `states` states, the same `seed` gives the same one. The state var is initialized at
+        // address BASE.
+        public static PcodeSnapshot generate(int states, long seed) throws Exception {
+            if (states < 2)
+                throw new Exception(String.format("Cannot flatten %d states, at least 2 are needed", states));
+            SyntheticFlattening gen = new SyntheticFlattening();
+            SplittableRandom random = new SplittableRandom(seed);
+            long[] values = new long[states];
+            Set<Long> used = new HashSet<>();
+            for (int i = 0; i < states; i++) {
+                do {
+                    values[i] = random.nextLong() & 0xffffffffL;
+                } while (values[i] < 0x10000 || !used.add(values[i]));
+            }
+
+            int entry = gen.block();
+            int init = gen.op(entry, PcodeOp.COPY, 4, gen.varnode(CONST, values[0], 4));
+            int head = gen.block();
+            gen.edge(entry, head);
+            // inputs of head are filled at last
+            int[] head_op = {PcodeOp.MULTIEQUAL, gen.varnode(UNIQUE, 0x10L * gen.varnodes.size(), 4), init, -1, -1};
+            gen.blocks.get(head).add(head_op);
+            int state = head_op[1];
+
+            // compare chain
+            int[] compares = new int[states];
+            for (int i = 0; i < states; i++)
+                compares[i] = gen.block();
+            gen.edge(head, compares[0]);
+            // new values of state var, with the blocks defining them
+            Vector<int[]> defs = new Vector<>();
+            for (int i = 0; i < states; i++) {
+                int equal = gen.op(compares[i], PcodeOp.INT_EQUAL, 1, state, gen.varnode(CONST, values[i], 4));
+                int next = (i + 1) % states;
+                // never the same as next, or the block would not choose at all
+                int other = (next + 1 + random.nextInt(states - 1)) % states;
+                int real = gen.block();
+                gen.branch(compares[i], equal, real, i + 1 < states ? compares[i + 1] : head);
+
+                if (i % 10 == 3 || i % 10 == 7) {
+                    // real block choosing between `next` and `other`, by CBRANCH or by CMOVxx
+                    int taken = gen.block(), fallthrough = gen.block(), join = gen.block();
+                    int a = gen.op(real, PcodeOp.COPY, 4, gen.varnode(CONST, values[next], 4));
+                    gen.branch(real, gen.varnode(UNIQUE, 0x10L * gen.varnodes.size(), 1), taken, fallthrough);
+                    int b = gen.op(taken, PcodeOp.COPY, 4, gen.varnode(CONST, values[other], 4));
+                    if (i % 10 == 7)
+                        gen.cmov.set(taken);
+                    gen.edge(taken, join);
+                    gen.edge(fallthrough, join);
+                    defs.add(new int[] {join, gen.op(join, PcodeOp.MULTIEQUAL, 4, b, a)});
+                } else {
+                    defs.add(new int[] {real, gen.op(real, PcodeOp.COPY, 4, gen.varnode(CONST, values[next], 4))});
+                }
+            }
+
+            // merge new values level by level
+            while (defs.size() > 1) {
+                Vector<int[]> merged = new Vector<>();
+                for (int i = 0; i < defs.size(); i += FANIN) {
+                    int merge = gen.block();
+                    int[] inputs = new int[Math.min(FANIN, defs.size() - i)];
+                    for (int j = 0; j < inputs.length; j++) {
+                        gen.edge(defs.get(i + j)[0], merge);
+                        inputs[j] = defs.get(i + j)[1];
                     }
-                    default -> throw new Exception(
-                            String.format("Unsupported P-code opcode for calculation: %d", opcode));
+                    merged.add(new int[] {merge, gen.op(merge, PcodeOp.MULTIEQUAL, 4, inputs)});
+                }
+                defs = merged;
+            }
+            gen.edge(defs.get(0)[0], head);
+            head_op[3] = defs.get(0)[1];
+            head_op[4] = state;
+            return gen.snapshot(String.format("flattened_%d", states));
+        }
+
+        private PcodeSnapshot snapshot(String name) {
+            PcodeSnapshot ret = new PcodeSnapshot();
+            ret.entry = BASE;
+            ret.name = name;
+            ret.spaces = new String[] {"const", "unique"};
+
+            int op_count = 0, input_count = 0;
+            for (Vector<int[]> ops: this.blocks) {
+                op_count += ops.size();
+                for (int[] op: ops)
+                    input_count += op.length - 2;
+            }
+            ret.varnode_space = new byte[this.varnodes.size()];
+            ret.varnode_offset = new long[this.varnodes.size()];
+            ret.varnode_size = new int[this.varnodes.size()];
+            ret.varnode_def = new int[this.varnodes.size()];
+            for (int i = 0; i < this.varnodes.size(); i++) {
+                long[] v = this.varnodes.get(i);
+                ret.varnode_space[i] = (byte) v[0];
+                ret.varnode_offset[i] = v[1];
+                ret.varnode_size[i] = (int) v[2];
+                ret.varnode_def[i] = -1;
+            }
+            ret.op_code = new int[op_count];
+            ret.op_address = new long[op_count];
+            ret.op_order = new int[op_count];
+            ret.op_block = new int[op_count];
+            ret.op_output = new int[op_count];
+            ret.op_input_start = new int[op_count];
+            ret.op_input_count = new int[op_count];
+            ret.inputs = new int[input_count];
+            ret.block_start = new long[this.blocks.size()];
+            ret.block_stop = new long[this.blocks.size()];
+            ret.block_first_op = new int[this.blocks.size()];
+            ret.block_op_count = new int[this.blocks.size()];
+            ret.block_true_out = new int[this.blocks.size()];
+            ret.block_false_out = new int[this.blocks.size()];
+            ret.block_cmov = new boolean[this.blocks.size()];
+
+            int op = 0, input = 0;
+            for (int b = 0; b < this.blocks.size(); b++) {
+                Vector<int[]> ops = this.blocks.get(b);
+                ret.block_start[b] = BASE + b * BLOCK_SIZE;
+                ret.block_stop[b] = ret.block_start[b] + BLOCK_SIZE - 4;
+                ret.block_first_op[b] = op;
+                ret.block_op_count[b] = ops.size();
+                ret.block_true_out[b] = -1;
+                ret.block_false_out[b] = -1;
+                ret.block_cmov[b] = this.cmov.get(b);
+                for (int i = 0; i < ops.size(); i++, op++) {
+                    int[] o = ops.get(i);
+                    ret.op_code[op] = o[0];
+                    ret.op_address[op] = ret.block_start[b] + 4L * i;
+                    ret.op_order[op] = 0;
+                    ret.op_block[op] = b;
+                    ret.op_output[op] = o[1];
+                    if (o[1] != -1)
+                        ret.varnode_def[o[1]] = op;
+                    ret.op_input_start[op] = input;
+                    ret.op_input_count[op] = o.length - 2;
+                    for (int j = 2; j < o.length; j++)
+                        ret.inputs[input++] = o[j];
                 }
             }
+            for (int[] branch: this.branches) {
+                ret.block_true_out[branch[0]] = branch[1];
+                ret.block_false_out[branch[0]] = branch[2];
+            }
+            ret.edge_from = this.edges.stream().mapToInt(e -> e[0]).toArray();
+            ret.edge_to = this.edges.stream().mapToInt(e -> e[1]).toArray();
+            ret.buildIndex();
+            return ret;
+        }
+    }
+
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+//////////////////////////////////////////////////// CoreBenchmark /////////////////////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+/**
+ * CoreBenchmark: Throughput and allocation of DeflatCore stages on functions from SyntheticFlattening. Every stage of
+ * every size is warmed up first and then measured for MEASURE_MS, allocation is counted by the JVM for this thread.
+ * It runs without Ghidra, see the header of this file.
+ */
+    static class CoreBenchmark {
+        public static final long WARMUP_MS = 1000;
+        public static final long MEASURE_MS = 2000;
+        private static final int[] SIZES = {100, 1000, 10000, 100000};
+        // results are kept here, so that no stage is optimized away
+        static volatile Object sink;
+
+        interface Stage {
+            Object run() throws Exception;
+        }
+
+        public static void main(String[] args) throws Exception {
+            int[] sizes = args.length == 0 ? SIZES : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+            System.out.printf("%-10s %-10s %14s %14s %16s%n", "states", "stage", "ops/s", "us/op", "bytes/op");
+            for (int states: sizes) {
+                PcodeSnapshot graph = SyntheticFlattening.generate(states, states);
+                DeflatCore core = new DeflatCore(graph, 4, Integer.MAX_VALUE, Integer.MAX_VALUE);
+                int state = core.stateVarNode(SyntheticFlattening.BASE);
+                BlockClassification classes = core.classifyBlocks(state);
+                ConditionIndex relations = core.findRealBlockRelations(classes);
+                DispatcherDFT dft = core.buildDispatcherDFT(classes, graph.def(state));
+                int flows = core.recoverExecFlow(classes, relations, dft).size();
+                if (relations.size() != states || !relations.problems.isEmpty())
+                    throw new Exception(String.format("%d states generated, but %d relations found",
+                            states, relations.size()));
+
+                measure(states, "relations", () -> core.findRealBlockRelations(core.classifyBlocks(state)));
+                measure(states, "dft", () -> core.buildDispatcherDFT(classes, graph.def(state)));
+                measure(states, "execflow", () -> core.recoverExecFlow(classes, relations, dft));
+                System.out.printf("%-10d %d blocks, %d ops, %d maps%n", states, graph.blockCount(), graph.opCount(),
+                        flows);
+            }
+        }
+
+        static void measure(int states, String name, Stage stage) throws Exception {
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+            long thread = Thread.currentThread().getId();
+            long end = System.nanoTime() + WARMUP_MS * 1000000;
+            while (System.nanoTime() < end)
+                sink = stage.run();
+
+            long ops = 0;
+            long allocated = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            end = start + MEASURE_MS * 1000000;
+            long now;
+            do {
+                sink = stage.run();
+                ops++;
+            } while ((now = System.nanoTime()) < end);
+            allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+            double seconds = (now - start) / 1e9;
+            System.out.printf("%-10d %-10s %14.1f %14.2f %16d%n", states, name, ops / seconds,
+                    seconds * 1e6 / ops, allocated / ops);
         }
     }
-}
\ No newline at end of file
+}